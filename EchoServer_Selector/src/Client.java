@@ -1,18 +1,36 @@
 
+
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class Client implements Runnable {
 	
 	private final InetAddress server;
 	private final int port;
+	// when set, connect to the server's Unix domain socket instead of TCP
+	private final Path socketPath;
 	
 	public Client(InetAddress server, int port) {
 		this.server = server;
 		this.port = port;
+		this.socketPath = null;
+	}
+	
+	public Client(Path socketPath) {
+		this.server = null;
+		this.port = 0;
+		this.socketPath = socketPath;
 	}
 	
 
@@ -21,14 +39,31 @@ public class Client implements Runnable {
 		DataOutputStream out;
 		
 
-		Socket socket = null;
+		SocketChannel channel = null;
 		try {
-			socket = new Socket(server, port); 
-			out = new DataOutputStream(socket.getOutputStream());;
+			if (socketPath != null) {
+				channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+			} else {
+				channel = SocketChannel.open(new InetSocketAddress(server, port));
+			}
+			out = new DataOutputStream(Channels.newOutputStream(channel));
+			
+			// replies are printed as they arrive, while the user types
+			final SocketChannel replies = channel;
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					readResponses(replies);
+				}
+			}, "Client-reader");
+			reader.setDaemon(true);
+			reader.start();
 			
 			while (true) {
 				System.out.print("text to send> ");
 				String message = stdIn.readLine();
+				if (message == null) {
+					break;
+				}
 				out.writeUTF(message);
 			}
 		}
@@ -36,17 +71,57 @@ public class Client implements Runnable {
 			e.printStackTrace();
     	} finally {
     		try {
-    			socket.close();
+    			if (channel != null) {
+    				channel.close();
+    			}
     		} catch (Exception e) {
     		}
     	}
 	}
 	
+	// Reads the frames (2-byte length and payload) sent back by the server.
+	// It uses the channel directly: a stream from Channels.newInputStream
+	// would hold the channel's blocking lock and stop the writes meanwhile.
+	private void readResponses(SocketChannel channel) {
+		ByteBuffer header = ByteBuffer.allocate(MOI_Server.BUFFER_HEADER_SIZE);
+		try {
+			while (true) {
+				header.clear();
+				readFully(channel, header);
+				ByteBuffer payload = ByteBuffer.allocate(header.getShort(0) & 0xffff);
+				readFully(channel, payload);
+				payload.flip();
+				System.out.println();
+				System.out.println("reply< " + MOI_Server.UTF8.decode(payload));
+				System.out.print("text to send> ");
+			}
+		} catch (IOException e) {
+			if (channel.isOpen()) {
+				System.out.println();
+				System.out.println("Connection closed by the server");
+			}
+		}
+	}
+	
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) == -1) {
+				throw new EOFException();
+			}
+		}
+	}
 	
+	
+	// Optional argument: path of the server's Unix domain socket
 	public static void main(String args[]) {
 		try {
-			InetAddress server = InetAddress.getLocalHost();
-			Client client = new Client(server, 8080);
+			Client client;
+			if (args.length > 0) {
+				client = new Client(Paths.get(args[0]));
+			} else {
+				InetAddress server = InetAddress.getLocalHost();
+				client = new Client(server, 8080);
+			}
 			client.run();
 		}
 		catch (Exception e) {
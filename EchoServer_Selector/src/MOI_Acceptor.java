@@ -1,24 +1,39 @@
 import java.io.IOException;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
 public class MOI_Acceptor extends MOI_EventHandler {
+	private final MOI_Server server;
 
-	public MOI_Acceptor() {
+	public MOI_Acceptor(MOI_Server server) {
 		super(EventType.EventTypes.NewConnectionRequest);
+		this.server = server;
 	}
 	
 	@Override
-	public void handleEvent(MOI_Reactor reactor, SelectionKey key) throws IOException {
-		super.handleEvent(reactor, key);
-		
-		SocketChannel client = reactor.getServer().accept(); 
-		client.configureBlocking(false); 
-		client.socket().setTcpNoDelay(true);
-		SelectionKey clientKey = client.register(reactor.getSelector(), SelectionKey.OP_READ);
-//		connection(clientKey);
-		System.out.println("Un cliente que se quiere conectar");
-		
+	public void handleEvent(MOI_Reactor reactor, SelectionKey key, int readyOps) throws IOException {
+		SocketChannel client = null;
+		try {
+			client = ((ServerSocketChannel)key.channel()).accept(); 
+			if (client == null) {
+				return;
+			}
+			client.configureBlocking(false); 
+			// Unix domain socket clients have no TCP options
+			if (client.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+				client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			}
+			// in main/sub-reactor mode the client is served by one of the sub-reactors
+			reactor.nextReactor().register(client, new MOI_Connection(server));
+		} catch (IOException e) {
+			// a failed accept must not take the listening socket down with it
+			e.printStackTrace();
+			if (client != null) {
+				client.close();
+			}
+		}
 	}
 	
 
@@ -0,0 +1,193 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+
+// Client for the selector protocol that multiplexes the requests of any
+// number of threads over a few connections. Every connection negotiates Int
+// headers with request ids (MOI_Connection.MULTIPLEX_BIT); request() writes
+// the frame on the next connection and returns a future that the
+// connection's reader thread completes when the reply with the same id
+// arrives, in whatever order the server answers.
+//
+// Frames with id 0 (sent by the server on its own, e.g. publications) go to
+// the push listener, if any. If a connection fails the whole client is
+// closed and every pending request fails.
+public class MOI_AsyncClient implements Closeable {
+	private final Link[] links;
+	private final AtomicInteger nextLink = new AtomicInteger(0);
+	private final AtomicInteger nextId = new AtomicInteger(1);
+	private final ConcurrentMap<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>>();
+	private volatile Consumer<ByteBuffer> pushListener = null;
+	private volatile boolean closed = false;
+
+	public MOI_AsyncClient(SocketAddress address, int connections) throws IOException {
+		if (connections <= 0) {
+			throw new IllegalArgumentException("At least one connection is needed");
+		}
+		links = new Link[connections];
+		try {
+			for (int i = 0; i < connections; i++) {
+				links[i] = new Link(SocketChannel.open(address), i);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		for (Link link : links) {
+			link.reader.start();
+		}
+	}
+
+	public void setPushListener(Consumer<ByteBuffer> pushListener) {
+		this.pushListener = pushListener;
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	// Sends the payload (from its position to its limit, which are left as
+	// they were) and returns the future of its reply
+	public CompletableFuture<ByteBuffer> request(ByteBuffer payload) {
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		if (closed) {
+			future.completeExceptionally(new IOException("Client closed"));
+			return future;
+		}
+		int id;
+		do {
+			id = nextId.getAndIncrement() & 0x7fffffff;
+		} while (id == 0);
+		pending.put(id, future);
+		Link link = links[(nextLink.getAndIncrement() & 0x7fffffff) % links.length];
+		try {
+			link.write(id, payload);
+		} catch (IOException e) {
+			pending.remove(id);
+			future.completeExceptionally(e);
+			close();
+		}
+		return future;
+	}
+
+	public void close() {
+		closed = true;
+		for (Link link : links) {
+			if (link != null) {
+				try {
+					link.channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		IOException cause = new IOException("Client closed");
+		for (Integer id : pending.keySet()) {
+			CompletableFuture<ByteBuffer> future = pending.remove(id);
+			if (future != null) {
+				future.completeExceptionally(cause);
+			}
+		}
+	}
+
+	private void received(int id, ByteBuffer payload) {
+		if (id == 0) {
+			Consumer<ByteBuffer> listener = pushListener;
+			if (listener != null) {
+				listener.accept(payload);
+			}
+			return;
+		}
+		CompletableFuture<ByteBuffer> future = pending.remove(id);
+		if (future != null) {
+			future.complete(payload);
+		}
+	}
+
+	// One connection: writes are serialized by its lock, replies are read by
+	// its own thread
+	private class Link implements Runnable {
+		private final SocketChannel channel;
+		private final Thread reader;
+		private final ByteBuffer header = ByteBuffer.allocate(MOI_HeaderFormat.Int.headerLength(0) + MOI_Connection.REQUEST_ID_LENGTH);
+		private final ByteBuffer[] frame = new ByteBuffer[2];
+
+		Link(SocketChannel channel, int index) throws IOException {
+			this.channel = channel;
+			negotiate();
+			reader = new Thread(this, "MOI_AsyncClient-" + index);
+			reader.setDaemon(true);
+		}
+
+		// Negotiation frame in the server's default (Short) header: the marker
+		// and the code of the format wanted; the server echoes the four bytes
+		private void negotiate() throws IOException {
+			byte code = (byte)(MOI_HeaderFormat.Int.code() | MOI_Connection.MULTIPLEX_BIT);
+			ByteBuffer request = ByteBuffer.wrap(new byte[] { 0, MOI_HeaderFormat.NEGOTIATION_LENGTH, MOI_HeaderFormat.NEGOTIATION_MARKER, code });
+			while (request.hasRemaining()) {
+				channel.write(request);
+			}
+			ByteBuffer reply = ByteBuffer.allocate(4);
+			readFully(reply);
+			if (reply.get(3) != code) {
+				throw new IOException("The server did not accept request ids");
+			}
+		}
+
+		synchronized void write(int id, ByteBuffer payload) throws IOException {
+			int position = payload.position();
+			header.clear();
+			MOI_HeaderFormat.Int.put(header, MOI_Connection.REQUEST_ID_LENGTH + payload.remaining());
+			header.putInt(id);
+			header.flip();
+			frame[0] = header;
+			frame[1] = payload;
+			try {
+				while (payload.hasRemaining() || header.hasRemaining()) {
+					channel.write(frame);
+				}
+			} finally {
+				payload.position(position);
+				frame[1] = null;
+			}
+		}
+
+		public void run() {
+			ByteBuffer prefix = ByteBuffer.allocate(header.capacity());
+			try {
+				while (true) {
+					prefix.clear();
+					readFully(prefix);
+					int length = prefix.getInt(0) - MOI_Connection.REQUEST_ID_LENGTH;
+					if (length < 0) {
+						throw new IOException("Frame without request id");
+					}
+					ByteBuffer payload = ByteBuffer.allocate(length);
+					readFully(payload);
+					payload.flip();
+					received(prefix.getInt(MOI_HeaderFormat.Int.headerLength(0)), payload);
+				}
+			} catch (IOException e) {
+				if (!closed) {
+					close();
+				}
+			}
+		}
+
+		private void readFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) == -1) {
+					throw new EOFException("Connection closed by the server");
+				}
+			}
+		}
+	}
+}
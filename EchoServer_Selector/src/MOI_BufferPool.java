@@ -0,0 +1,185 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Pool of direct ByteBuffers for the read and write paths. Buffers are carved,
+// by size class, out of large direct "slabs" and go back to the free list of
+// their class on release(). Requests bigger than the largest class, or made
+// once the pool has reached its maximum size, get an unpooled heap buffer
+// (counted as a miss) that release() simply ignores.
+//
+// Every size class keeps the buffers it has lent by identity, so releasing a
+// buffer twice, or a direct buffer that does not come from the pool, is
+// reported and ignored instead of putting it on a free list, from where it
+// would be handed to two owners at once.
+//
+// With -Dmoi.pool.leakDetection=true every outstanding buffer also remembers
+// where it was acquired, so reportLeaks() can tell who is holding on to them.
+public class MOI_BufferPool {
+	public static final int MIN_CLASS_SIZE = 256;
+	public static final int MAX_CLASS_SIZE = 128 * 1024;
+	public static final int SLAB_SIZE = 1024 * 1024;
+
+	private final SizeClass[] sizeClasses;
+	private final long maxPoolBytes;
+	private final AtomicLong pooledBytes = new AtomicLong(0);
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong outstanding = new AtomicLong(0);
+
+	private final boolean leakDetection;
+	private final Map<ByteBuffer, Throwable> acquiredAt = new IdentityHashMap<ByteBuffer, Throwable>();
+
+	public MOI_BufferPool() {
+		this(64L * 1024 * 1024, Boolean.getBoolean("moi.pool.leakDetection"));
+	}
+
+	public MOI_BufferPool(long maxPoolBytes, boolean leakDetection) {
+		this.maxPoolBytes = maxPoolBytes;
+		this.leakDetection = leakDetection;
+		int classes = sizeClass(MAX_CLASS_SIZE) + 1;
+		sizeClasses = new SizeClass[classes];
+		for (int i = 0; i < classes; i++) {
+			sizeClasses[i] = new SizeClass();
+		}
+	}
+
+	// Returns a buffer with position 0 and limit == size; its capacity may be
+	// bigger (the size of its class).
+	public ByteBuffer acquire(int size) {
+		ByteBuffer buffer = null;
+		if (size <= MAX_CLASS_SIZE) {
+			int index = sizeClass(size);
+			SizeClass sizeClass = sizeClasses[index];
+			synchronized (sizeClass) {
+				buffer = sizeClass.free.poll();
+				if (buffer == null && carveSlab(index)) {
+					buffer = sizeClass.free.poll();
+					misses.incrementAndGet();
+				} else if (buffer != null) {
+					hits.incrementAndGet();
+				}
+				if (buffer != null) {
+					sizeClass.lent.put(buffer, Boolean.TRUE);
+				}
+			}
+		}
+		if (buffer == null) {
+			misses.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+
+		outstanding.incrementAndGet();
+		if (leakDetection) {
+			synchronized (acquiredAt) {
+				acquiredAt.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here"));
+			}
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			// unpooled buffer: left to the GC
+			return;
+		}
+		int capacity = buffer.capacity();
+		SizeClass sizeClass = (capacity <= MAX_CLASS_SIZE) ? sizeClasses[sizeClass(capacity)] : null;
+		if (sizeClass == null || !sizeClass.giveBack(buffer)) {
+			new IllegalStateException("Buffer released twice or not acquired from this pool").printStackTrace();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getOutstanding() {
+		return outstanding.get();
+	}
+
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	// Prints where every buffer that has not been released yet was acquired
+	// (only available with leak detection enabled).
+	public void reportLeaks(PrintStream out) {
+		if (!leakDetection) {
+			out.println("Buffer leak detection is disabled (-Dmoi.pool.leakDetection=true)");
+			return;
+		}
+		synchronized (acquiredAt) {
+			out.println(acquiredAt.size() + " buffers outstanding");
+			for (Throwable trace : acquiredAt.values()) {
+				trace.printStackTrace(out);
+			}
+		}
+	}
+
+	public String toString() {
+		return "MOI_BufferPool[hits=" + hits.get() + ", misses=" + misses.get()
+				+ ", outstanding=" + outstanding.get() + ", pooledBytes=" + pooledBytes.get() + "]";
+	}
+
+	// index of the smallest power of two class that can hold size bytes
+	private static int sizeClass(int size) {
+		int sizeClass = 0;
+		int classSize = MIN_CLASS_SIZE;
+		while (classSize < size) {
+			classSize <<= 1;
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+
+	// Adds the chunks of a new slab to the free list of the class (the caller
+	// holds its lock). Returns false once the pool has reached its maximum size.
+	private boolean carveSlab(int sizeClass) {
+		if (pooledBytes.addAndGet(SLAB_SIZE) > maxPoolBytes) {
+			pooledBytes.addAndGet(-SLAB_SIZE);
+			return false;
+		}
+		int classSize = MIN_CLASS_SIZE << sizeClass;
+		ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+		for (int offset = 0; offset + classSize <= SLAB_SIZE; offset += classSize) {
+			slab.limit(offset + classSize);
+			slab.position(offset);
+			sizeClasses[sizeClass].free.add(slab.slice());
+		}
+		return true;
+	}
+
+	// Free buffers of one size and the ones lent, guarded by its own lock
+	private class SizeClass {
+		final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+		final Map<ByteBuffer, Boolean> lent = new IdentityHashMap<ByteBuffer, Boolean>();
+
+		// Puts a lent buffer back on the free list; false if it is not lent
+		synchronized boolean giveBack(ByteBuffer buffer) {
+			if (lent.remove(buffer) == null) {
+				return false;
+			}
+			outstanding.decrementAndGet();
+			if (leakDetection) {
+				// before it can be acquired again
+				synchronized (acquiredAt) {
+					acquiredAt.remove(buffer);
+				}
+			}
+			free.push(buffer);
+			return true;
+		}
+	}
+}
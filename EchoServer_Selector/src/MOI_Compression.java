@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+// Per-message deflate for one connection. A client asks for it by setting
+// NEGOTIATION_BIT in the format code it sends when negotiating its header
+// format (see MOI_HeaderFormat); the server echoes the code with the bit
+// cleared if it does not accept it. From then on the payload of every frame,
+// in both directions, starts with a flag byte: FLAG_NONE when the rest is
+// sent as it is, FLAG_DEFLATE when it is zlib-compressed. On multiplexed
+// connections the request id comes before the flag and is never compressed.
+//
+// Only frames up to the stream threshold can be compressed: a streamed frame
+// must carry FLAG_NONE, which is delivered with its first chunk.
+//
+// The Deflater and the Inflater live as long as the connection and are reset
+// for every message. The inflater is only used by the reactor's thread; the
+// deflater may also be used by threads calling sendAsync or publish, so
+// encode() is synchronized.
+public class MOI_Compression {
+	public static final int NEGOTIATION_BIT = 0x40;
+	public static final byte FLAG_NONE = 0;
+	public static final byte FLAG_DEFLATE = 1;
+
+	private final MOI_BufferPool pool;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	private final Inflater inflater = new Inflater();
+	// inflated payload of the last compressed frame and the view handed out
+	private ByteBuffer inflated = null;
+	private ByteBuffer inflatedView = null;
+	private boolean released = false;
+
+	public MOI_Compression(MOI_BufferPool pool) {
+		this.pool = pool;
+	}
+
+	// Builds the frame for a message: deflated when it is at least threshold
+	// bytes long and compressing it makes it shorter, as it is otherwise.
+	// The request id is only written when withRequestId is set.
+	public synchronized ByteBuffer encode(MOI_HeaderFormat format, boolean withRequestId, int requestId, ByteBuffer message, int threshold) {
+		int length = message.remaining();
+		int position = message.position();
+		if (length >= threshold && !released) {
+			ByteBuffer compressed = pool.acquire(length);
+			deflater.reset();
+			deflater.setInput(message);
+			deflater.finish();
+			while (!deflater.finished() && compressed.hasRemaining()) {
+				deflater.deflate(compressed);
+			}
+			message.position(position);
+			if (deflater.finished()) {
+				compressed.flip();
+				ByteBuffer frame = frame(format, withRequestId, requestId, compressed.remaining(), FLAG_DEFLATE);
+				frame.put(compressed);
+				frame.flip();
+				pool.release(compressed);
+				return frame;
+			}
+			// not worth it
+			pool.release(compressed);
+		}
+		ByteBuffer frame = frame(format, withRequestId, requestId, length, FLAG_NONE);
+		frame.put(message);
+		message.position(position);
+		frame.flip();
+		return frame;
+	}
+
+	private ByteBuffer frame(MOI_HeaderFormat format, boolean withRequestId, int requestId, int length, byte flag) {
+		int prefix = (withRequestId ? MOI_Connection.REQUEST_ID_LENGTH : 0) + 1;
+		ByteBuffer frame = pool.acquire(format.headerLength(length + prefix) + prefix + length);
+		format.put(frame, length + prefix);
+		if (withRequestId) {
+			frame.putInt(requestId);
+		}
+		frame.put(flag);
+		return frame;
+	}
+
+	// Reads the flag of a received payload and returns the message: the rest
+	// of the payload itself, or a view over its inflated content that is only
+	// valid until the next call.
+	public ByteBuffer decode(ByteBuffer payload, long maxLength) throws IOException {
+		if (!payload.hasRemaining()) {
+			throw new IOException("Frame without compression flag");
+		}
+		byte flag = payload.get();
+		if (flag == FLAG_NONE) {
+			return payload;
+		}
+		if (flag != FLAG_DEFLATE) {
+			throw new IOException("Unknown compression flag " + flag);
+		}
+		return inflate(payload, maxLength);
+	}
+
+	private ByteBuffer inflate(ByteBuffer payload, long maxLength) throws IOException {
+		if (inflated == null) {
+			inflated = pool.acquire(Math.max(MOI_Server.BUFFER_SIZE, payload.remaining() * 4));
+			inflatedView = inflated.asReadOnlyBuffer();
+		}
+		inflated.clear();
+		inflater.reset();
+		inflater.setInput(payload);
+		try {
+			while (!inflater.finished()) {
+				if (!inflated.hasRemaining()) {
+					if (inflated.capacity() >= maxLength) {
+						throw new IOException("Compressed frame longer than " + maxLength + " bytes once inflated");
+					}
+					grow();
+				}
+				if (inflater.inflate(inflated) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated compressed frame");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed frame", e);
+		}
+		if (inflated.position() > maxLength) {
+			throw new IOException("Compressed frame longer than " + maxLength + " bytes once inflated");
+		}
+		inflatedView.limit(inflated.position());
+		inflatedView.position(0);
+		return inflatedView;
+	}
+
+	private void grow() {
+		ByteBuffer tmp = pool.acquire(inflated.capacity() * 2);
+		tmp.clear();
+		inflated.flip();
+		tmp.put(inflated);
+		pool.release(inflated);
+		inflated = tmp;
+		inflatedView = inflated.asReadOnlyBuffer();
+	}
+
+	public synchronized void release() {
+		released = true;
+		deflater.end();
+		inflater.end();
+		if (inflated != null) {
+			pool.release(inflated);
+			inflated = null;
+			inflatedView = null;
+		}
+	}
+}
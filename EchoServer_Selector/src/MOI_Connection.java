@@ -0,0 +1,646 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+// Per-connection state, attached to the client SelectionKey by MOI_Acceptor.
+// Bytes read from the socket are accumulated in a buffer that lives as long as
+// the connection, so frames split across several reads are not lost and a read
+// carrying several pipelined frames is decoded completely.
+//
+// Frames longer than the server's stream threshold are never buffered whole:
+// their payload is handed over in chunks of the server's chunk size, so the
+// buffer never grows beyond max(threshold, chunk size) plus a header.
+//
+// When the server has a MOI_TlsContext the connection goes through a
+// MOI_TlsSession: read() decrypts into the same accumulation buffer and
+// flush() encrypts the outbound queue, so the framing above is unchanged.
+//
+// When the reactor sets rate limits, every connection gets token buckets for
+// bytes and messages per second. A client that runs out of tokens stops being
+// read (its remaining frames stay in the buffer) until a timer of the reactor
+// finds the buckets refilled.
+//
+// A client that sets MULTIPLEX_BIT in its negotiation code gets a request id
+// (4 bytes, big-endian) at the start of every payload, before the
+// compression flag if any. Replies carry the id of their request, so many
+// requests can be outstanding on one connection and answered out of order;
+// frames the server sends on its own (e.g. publications) carry id 0.
+public class MOI_Connection extends MOI_EventHandler {
+	public static final int MULTIPLEX_BIT = 0x20;
+	public static final int REQUEST_ID_LENGTH = 4;
+
+	private final MOI_Server server;
+	private ByteBuffer readBuffer;
+	// read-only window over readBuffer handed to the server, one frame at a time
+	private ByteBuffer frameView;
+	// offset in readBuffer of the first frame not returned by nextFrame() yet
+	private int frameStart = 0;
+	private final MOI_BufferPool pool;
+	private final MOI_OutboundLanes outbound;
+	// reasons why OP_READ is removed; reading resumes when none is left
+	public static final int PAUSE_WATERMARK = 1;	// outbound queue above the high watermark
+	public static final int PAUSE_TLS_TASKS = 2;	// TLS handshake tasks running on the executor
+	public static final int PAUSE_THROTTLE = 4;	// out of byte or message tokens
+	public static final int PAUSE_TLS_OUTPUT = 8;	// TLS engine cannot unwrap before its output is written
+	private int readPaused = 0;
+	private final MOI_TlsSession tls;
+	private SelectionKey key = null;
+	private MOI_Reactor reactor = null;
+	// System.nanoTime() of the last read, checked by the idle timeout
+	private long lastActivity = System.nanoTime();
+	private MOI_TimingWheel.Timeout idleTimeout = null;
+	// rate limits set by the reactor (null = unlimited)
+	private MOI_TokenBucket byteBucket = null;
+	private MOI_TokenBucket messageBucket = null;
+	private MOI_TimingWheel.Timeout throttleTimeout = null;
+	// end of stream read while throttled: removed once the frames held back
+	// have been delivered
+	private boolean inputClosed = false;
+	// topics the client is subscribed to, left when it disconnects
+	private final Set<String> topics = new HashSet<String>();
+
+	private MOI_HeaderFormat headerFormat;
+	// the header format can only be changed by the first frame of the connection
+	private boolean negotiated = false;
+	// per-message deflate, when negotiated along with the header format
+	private MOI_Compression compression = null;
+	// request ids, when negotiated; the id of the last frame returned
+	private boolean multiplexed = false;
+	private int requestId = 0;
+	// bytes of the streamed frame being sent that have not been queued yet
+	private long sendStreamRemaining = 0;
+	// frame being delivered in chunks: its length and what is still to come
+	private long streamLength = 0;
+	private long streamRemaining = 0;
+	private long chunkOffset = 0;
+	private boolean lastWasChunk = false;
+
+	public MOI_Connection(MOI_Server server) throws IOException {
+		super(EventType.EventTypes.MessageReceivedFromClient);
+		this.server = server;
+		this.pool = server.getBufferPool();
+		this.outbound = new MOI_OutboundLanes(pool);
+		this.readBuffer = pool.acquire(MOI_Server.BUFFER_SIZE);
+		this.readBuffer.clear();
+		this.frameView = readBuffer.asReadOnlyBuffer();
+		this.headerFormat = server.getHeaderFormat();
+		if (server.getTlsContext() != null) {
+			this.tls = new MOI_TlsSession(server.getTlsContext(), pool);
+			this.tls.setTasksDoneCallback(new Runnable() {
+				public void run() {
+					resumeTlsLater();
+				}
+			});
+			ensureCapacity(tls.getApplicationBufferSize());
+		} else {
+			this.tls = null;
+		}
+	}
+
+	public MOI_Server getServer() {
+		return this.server;
+	}
+
+	public SelectionKey getKey() {
+		return this.key;
+	}
+
+	// Only to be used from the thread of the reactor serving the connection
+	public Set<String> getTopics() {
+		return this.topics;
+	}
+
+	public MOI_Reactor getReactor() {
+		return this.reactor;
+	}
+
+	// Called by the reactor serving the connection once it is registered
+	public void registered(MOI_Reactor reactor, SelectionKey key) {
+		this.reactor = reactor;
+		this.key = key;
+		this.lastActivity = System.nanoTime();
+		if (reactor.getBytesPerSecond() > 0) {
+			byteBucket = new MOI_TokenBucket(reactor.getBytesPerSecond(), reactor.getBytesPerSecond());
+		}
+		if (reactor.getMessagesPerSecond() > 0) {
+			messageBucket = new MOI_TokenBucket(reactor.getMessagesPerSecond(), reactor.getMessagesPerSecond());
+		}
+		scheduleIdleCheck(server.getIdleTimeout());
+	}
+
+	public boolean isThrottled() {
+		return (readPaused & PAUSE_THROTTLE) != 0;
+	}
+
+	// The client has closed the connection while throttled; reading stays
+	// paused and the throttle timer removes the connection when it is done
+	public void setInputClosed() {
+		this.inputClosed = true;
+	}
+
+	private void consumeBytes(int read) {
+		if (byteBucket == null || read <= 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		byteBucket.consume(read, now);
+		long wait = byteBucket.millisUntil(0, now);
+		if (wait > 0) {
+			throttle(wait);
+		}
+	}
+
+	// Takes a message token; if there is none the frame must stay in the
+	// buffer until the throttle timer delivers it
+	private boolean admitMessage() {
+		if (messageBucket == null) {
+			return true;
+		}
+		long now = System.nanoTime();
+		if (messageBucket.tryConsume(1, now)) {
+			return true;
+		}
+		throttle(messageBucket.millisUntil(1, now));
+		return false;
+	}
+
+	private void throttle(long delayMillis) {
+		pauseRead(key, PAUSE_THROTTLE);
+		if (throttleTimeout == null) {
+			throttleTimeout = reactor.schedule(new Runnable() {
+				public void run() {
+					throttleExpired();
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void throttleExpired() {
+		throttleTimeout = null;
+		if (!key.isValid()) {
+			return;
+		}
+		try {
+			// frames held back for lack of message tokens (may throttle again)
+			server.deliverMessages(key);
+			if (throttleTimeout == null && inputClosed) {
+				// everything the client sent before closing has been delivered
+				reactor.removeHandler(key);
+			} else if (throttleTimeout == null) {
+				long wait = (byteBucket == null) ? 0 : byteBucket.millisUntil(0, System.nanoTime());
+				if (wait > 0) {
+					throttle(wait);
+				} else {
+					resumeRead(key, PAUSE_THROTTLE);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			reactor.removeHandler(key);
+		}
+	}
+
+	// Rather than rescheduling a timeout on every read, the check looks at the
+	// time of the last read when it fires and, if the client has not been idle
+	// long enough, schedules itself again for the time that is left.
+	private void scheduleIdleCheck(long delayMillis) {
+		if (delayMillis <= 0) {
+			return;
+		}
+		idleTimeout = reactor.schedule(new Runnable() {
+			public void run() {
+				checkIdle();
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void checkIdle() {
+		idleTimeout = null;
+		if (!key.isValid()) {
+			return;
+		}
+		long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+		long limit = server.getIdleTimeout();
+		if (idleMillis >= limit) {
+			server.idle(key);
+			reactor.removeHandler(key);
+		} else {
+			scheduleIdleCheck(limit - idleMillis);
+		}
+	}
+
+	public MOI_HeaderFormat getHeaderFormat() {
+		return this.headerFormat;
+	}
+
+	// Whether the last buffer returned by nextFrame() is a chunk of a streamed
+	// frame rather than a whole frame
+	public boolean isChunk() {
+		return lastWasChunk;
+	}
+
+	// Offset of the last chunk returned in its frame, and that frame's length
+	public long getChunkOffset() {
+		return chunkOffset;
+	}
+
+	public long getStreamLength() {
+		return streamLength;
+	}
+
+	public MOI_Compression getCompression() {
+		return this.compression;
+	}
+
+	public boolean isMultiplexed() {
+		return this.multiplexed;
+	}
+
+	// Request id of the last frame returned by nextFrame() (0 when the
+	// connection is not multiplexed)
+	public int getRequestId() {
+		return this.requestId;
+	}
+
+	public boolean isSecure() {
+		return tls != null;
+	}
+
+	@Override
+	public void handleEvent(MOI_Reactor reactor, SelectionKey key, int readyOps) throws IOException {
+		if ((readyOps & SelectionKey.OP_WRITE) != 0) {
+			flush(key);
+			if ((readPaused & PAUSE_TLS_OUTPUT) != 0 && !tls.hasPendingOutput()) {
+				// the engine's output is out: unwrap what it left in netIn
+				resumeRead(key, PAUSE_TLS_OUTPUT);
+				processTls(key);
+				server.deliverMessages(key);
+			}
+		}
+		if ((readyOps & SelectionKey.OP_READ) != 0 && key.isValid()) {
+			server.readIncomingMessages(key);
+		}
+	}
+
+	@Override
+	public void handlerRemoved(MOI_Reactor reactor, SelectionKey key) {
+		if (idleTimeout != null) {
+			idleTimeout.cancel();
+			idleTimeout = null;
+		}
+		if (throttleTimeout != null) {
+			throttleTimeout.cancel();
+			throttleTimeout = null;
+		}
+		outbound.clear();
+		if (tls != null) {
+			tls.release();
+		}
+		if (compression != null) {
+			compression.release();
+		}
+		pool.release(readBuffer);
+		readBuffer = null;
+		frameView = null;
+		server.unsubscribeAll(key);
+		server.disconnected(key);
+	}
+
+	// Queues a frame for the client in the bulk lane; the connection owns it
+	// from now on and gives it back to the pool once it has been written. If
+	// the socket was not already full it is written straight away; OP_WRITE
+	// is only registered when the socket buffer cannot take everything.
+	public void send(SelectionKey key, ByteBuffer frame) throws IOException {
+		send(key, frame, null, MOI_OutboundLanes.Priority.Bulk);
+	}
+
+	public void send(SelectionKey key, ByteBuffer frame, MOI_OutboundLanes.Priority priority) throws IOException {
+		send(key, frame, null, priority);
+	}
+
+	// Queues a view over a shared frame; the reference held on the owner is
+	// released once the view has been written (or the connection closed).
+	public void send(SelectionKey key, ByteBuffer view, MOI_SharedBuffer owner, MOI_OutboundLanes.Priority priority) throws IOException {
+		outbound.add(view, owner, priority);
+		flushOrWait(key);
+	}
+
+	// Header of a frame whose payload follows in sendStreamChunk calls, in the
+	// bulk lane. Frames may still be sent until the payload is complete: the
+	// control ones are written after it is, the bulk ones after the whole
+	// streamed frame.
+	public void sendStreamHeader(SelectionKey key, ByteBuffer header, long length) throws IOException {
+		if (sendStreamRemaining > 0) {
+			throw new IllegalStateException("A streamed frame is being sent");
+		}
+		sendStreamRemaining = length;
+		outbound.addStreamPart(header, length == 0);
+		flushOrWait(key);
+	}
+
+	public void sendStreamChunk(SelectionKey key, ByteBuffer chunk) throws IOException {
+		if (chunk.remaining() > sendStreamRemaining) {
+			throw new IllegalStateException("Chunk longer than the rest of the streamed frame");
+		}
+		sendStreamRemaining -= chunk.remaining();
+		outbound.addStreamPart(chunk, sendStreamRemaining == 0);
+		flushOrWait(key);
+	}
+
+	private void flushOrWait(SelectionKey key) throws IOException {
+		if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+			flush(key);
+		} else {
+			checkWatermarks(key);
+		}
+	}
+
+	public long getQueuedBytes() {
+		return outbound.getQueuedBytes();
+	}
+
+	private void flush(SelectionKey key) throws IOException {
+		boolean pending;
+		if (tls != null) {
+			// during the handshake the queued frames wait: the end of the
+			// handshake is seen by processTls(), which flushes again
+			tls.flush((SocketChannel)key.channel(), outbound);
+			pending = tls.hasPendingOutput();
+		} else {
+			outbound.writeTo((SocketChannel)key.channel());
+			pending = outbound.canWrite();
+		}
+		if (!pending) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} else {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+		checkWatermarks(key);
+	}
+
+	// Stops reading from a client that does not read its replies, and starts
+	// again once most of what was queued for it has been written.
+	private void checkWatermarks(SelectionKey key) {
+		long queued = outbound.getQueuedBytes();
+		if ((readPaused & PAUSE_WATERMARK) == 0 && queued >= server.getHighWatermark()) {
+			pauseRead(key, PAUSE_WATERMARK);
+		} else if ((readPaused & PAUSE_WATERMARK) != 0 && queued <= server.getLowWatermark()) {
+			resumeRead(key, PAUSE_WATERMARK);
+		}
+	}
+
+	private void pauseRead(SelectionKey key, int reason) {
+		if (readPaused == 0) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		readPaused |= reason;
+	}
+
+	private void resumeRead(SelectionKey key, int reason) {
+		if (readPaused == 0) {
+			return;
+		}
+		readPaused &= ~reason;
+		if (readPaused == 0) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	// Reads whatever is available on the channel, appending it to the
+	// accumulation buffer. Returns -1 when the peer has closed the connection.
+	public int read(SocketChannel channel) throws IOException {
+		if (!readBuffer.hasRemaining()) {
+			ensureCapacity(readBuffer.capacity() * 2);
+		}
+		lastActivity = System.nanoTime();
+		if (tls == null) {
+			int read = channel.read(readBuffer);
+			consumeBytes(read);
+			return read;
+		}
+		int read = tls.read(channel);
+		if (read == -1) {
+			return -1;
+		}
+		consumeBytes(read);
+		processTls(key);
+		return tls.isInboundClosed() ? -1 : read;
+	}
+
+	// Unwraps what has been received into the accumulation buffer, sending
+	// whatever the engine asks for in between, until it needs more input.
+	private void processTls(SelectionKey key) throws IOException {
+		while (true) {
+			int status = tls.unwrap(readBuffer);
+			if (status == MOI_TlsSession.UNWRAP_OVERFLOW) {
+				ensureCapacity(readBuffer.position() - frameStart + tls.getApplicationBufferSize());
+				continue;
+			}
+			if (tls.isRunningTasks()) {
+				// nothing can be unwrapped until the tasks are done
+				pauseRead(key, PAUSE_TLS_TASKS);
+			}
+			if (tls.needsWrap() || (!tls.isHandshaking() && outbound.canWrite())) {
+				flush(key);
+			}
+			if (status != MOI_TlsSession.UNWRAP_NEED_WRAP || tls.isRunningTasks()) {
+				return;
+			}
+			if (tls.hasPendingOutput()) {
+				// the socket is full and the engine stays in NEED_WRAP, where
+				// unwrap consumes nothing: go on once OP_WRITE has drained it
+				pauseRead(key, PAUSE_TLS_OUTPUT);
+				return;
+			}
+		}
+	}
+
+	// Called on the handshake executor's thread: goes on with the handshake in
+	// the reactor's thread.
+	private void resumeTlsLater() {
+		Runnable resume = new Runnable() {
+			public void run() {
+				tls.tasksFinished();
+				if (!key.isValid()) {
+					return;
+				}
+				try {
+					resumeRead(key, PAUSE_TLS_TASKS);
+					processTls(key);
+					server.deliverMessages(key);
+				} catch (IOException e) {
+					reactor.removeHandler(key);
+				}
+			}
+		};
+		// never waits for a busy reactor: that would hold the executor thread
+		// back from the handshakes of the other connections
+		reactor.put(resume);
+	}
+
+	// Returns the payload of the next complete frame (between the position and
+	// the limit of the returned buffer), or null when the buffer does not hold
+	// a whole frame yet. For a streamed frame it returns its next chunk instead
+	// (see isChunk()). The returned buffer is a read-only view over the
+	// accumulation buffer, reused for every frame: it is only valid until the
+	// next call to nextFrame() or compact().
+	public ByteBuffer nextFrame() throws IOException {
+		if (streamRemaining > 0) {
+			return nextChunk();
+		}
+		int available = readBuffer.position() - frameStart;
+		long header = headerFormat.get(readBuffer, frameStart, available);
+		if (header == MOI_HeaderFormat.INCOMPLETE) {
+			return null;
+		}
+		int headerLength = (int)(header & 7);
+		long bytesToRead = header >>> 3;
+
+		if (!negotiated) {
+			if (bytesToRead == MOI_HeaderFormat.NEGOTIATION_LENGTH) {
+				if (available < headerLength + MOI_HeaderFormat.NEGOTIATION_LENGTH) {
+					return null;
+				}
+				if (readBuffer.get(frameStart + headerLength) == MOI_HeaderFormat.NEGOTIATION_MARKER) {
+					// negotiation request: the byte after the marker selects the header format
+					negotiate(headerLength);
+					return nextFrame();
+				}
+			}
+			negotiated = true;
+		}
+
+		if (bytesToRead > server.getStreamThreshold()) {
+			if (!admitMessage()) {
+				return null;
+			}
+			frameStart += headerLength;
+			streamLength = bytesToRead;
+			streamRemaining = bytesToRead;
+			return nextChunk();
+		}
+
+		int frameLength = headerLength + (int)bytesToRead;
+		if (available < frameLength) {
+			// message may be longer than buffer => make room for the whole frame
+			if (readBuffer.capacity() - frameStart < frameLength) {
+				ensureCapacity(frameLength);
+			}
+			return null;
+		}
+		if (!admitMessage()) {
+			return null;
+		}
+
+		frameView.limit(frameStart + frameLength);
+		frameView.position(frameStart + headerLength);
+		frameStart += frameLength;
+		lastWasChunk = false;
+		if (multiplexed) {
+			if (frameView.remaining() < REQUEST_ID_LENGTH) {
+				throw new IOException("Frame without request id");
+			}
+			requestId = frameView.getInt(frameView.position());
+			frameView.position(frameView.position() + REQUEST_ID_LENGTH);
+		}
+		if (compression != null) {
+			return compression.decode(frameView, server.getStreamThreshold());
+		}
+		return frameView;
+	}
+
+	// Next fixed-size chunk of the frame being streamed (the last one may be
+	// shorter), or null if it has not been completely received yet.
+	private ByteBuffer nextChunk() throws IOException {
+		int available = readBuffer.position() - frameStart;
+		int chunkLength = (int)Math.min(server.getChunkSize(), streamRemaining);
+		if (available < chunkLength) {
+			if (readBuffer.capacity() - frameStart < chunkLength) {
+				ensureCapacity(chunkLength);
+			}
+			return null;
+		}
+
+		frameView.limit(frameStart + chunkLength);
+		frameView.position(frameStart);
+		if (streamRemaining == streamLength) {
+			// the request id and the compression flag are only in the first chunk
+			int flagOffset = 0;
+			if (multiplexed) {
+				if (chunkLength < REQUEST_ID_LENGTH + 1) {
+					throw new IOException("Chunk too short for a request id");
+				}
+				requestId = readBuffer.getInt(frameStart);
+				flagOffset = REQUEST_ID_LENGTH;
+			}
+			if (compression != null && readBuffer.get(frameStart + flagOffset) != MOI_Compression.FLAG_NONE) {
+				throw new IOException("Streamed frames cannot be compressed");
+			}
+		}
+		frameStart += chunkLength;
+		chunkOffset = streamLength - streamRemaining;
+		streamRemaining -= chunkLength;
+		lastWasChunk = true;
+		return frameView;
+	}
+
+	// Switches to the format requested by the first frame and echoes the
+	// request, in the old format, to confirm it. The compression bit of
+	// the code is cleared in the reply when the server does not accept it;
+	// the multiplexing bit is always accepted.
+	private void negotiate(int headerLength) throws IOException {
+		int requestLength = headerLength + MOI_HeaderFormat.NEGOTIATION_LENGTH;
+		int code = readBuffer.get(frameStart + headerLength + 1) & 0xff;
+		MOI_HeaderFormat requested = MOI_HeaderFormat.fromCode(code & ~(MOI_Compression.NEGOTIATION_BIT | MULTIPLEX_BIT));
+		multiplexed = (code & MULTIPLEX_BIT) != 0;
+		if ((code & MOI_Compression.NEGOTIATION_BIT) != 0) {
+			if (server.isCompressionEnabled()) {
+				compression = new MOI_Compression(pool);
+			} else {
+				code &= ~MOI_Compression.NEGOTIATION_BIT;
+			}
+		}
+		ByteBuffer reply = pool.acquire(requestLength);
+		for (int i = 0; i <= headerLength; i++) {
+			reply.put(readBuffer.get(frameStart + i));
+		}
+		reply.put((byte)code);
+		reply.flip();
+		frameStart += requestLength;
+		negotiated = true;
+		headerFormat = requested;
+		send(key, reply, MOI_OutboundLanes.Priority.Control);
+	}
+
+	// Discards the frames already returned by nextFrame(), keeping the partial
+	// frame (if any) at the beginning of the buffer for the next read.
+	public void compact() {
+		if (frameStart == 0) {
+			return;
+		}
+		readBuffer.flip();
+		readBuffer.position(frameStart);
+		readBuffer.compact();
+		frameStart = 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		// keep any bytes not consumed yet and drop the ones already decoded
+		compact();
+		if (capacity <= readBuffer.capacity()) {
+			return;
+		}
+		ByteBuffer tmp = pool.acquire(capacity);
+		tmp.clear();
+		readBuffer.flip();
+		tmp.put(readBuffer);
+		pool.release(readBuffer);
+		readBuffer = tmp;
+		frameView = readBuffer.asReadOnlyBuffer();
+	}
+}
@@ -2,6 +2,8 @@ import java.io.IOException;
 import java.nio.channels.SelectionKey;
 
 
+// Handlers are attached to the SelectionKey of the channel they serve; the
+// reactor hands them the ready operations of that key.
 public abstract class MOI_EventHandler {
 	private EventType etype;
 
@@ -9,7 +11,13 @@ public abstract class MOI_EventHandler {
 		this.etype = new EventType(etype);		
 	}
 	
-	public void handleEvent(MOI_Reactor reactor, SelectionKey key) throws IOException {
-		System.out.println("Handling event " + etype.toString());
+	public EventType getEventType() {
+		return this.etype;
+	}
+	
+	public abstract void handleEvent(MOI_Reactor reactor, SelectionKey key, int readyOps) throws IOException;
+	
+	// Called once the key has been cancelled and its channel closed
+	public void handlerRemoved(MOI_Reactor reactor, SelectionKey key) {
 	}
 }
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+// Length prefix of the frames of the selector protocol. Short is the original
+// 2-byte header (what DataOutputStream.writeUTF produces), Int a 4-byte
+// unsigned length and Varint a base-128 varint (low 7 bits first, at most 5
+// bytes).
+//
+// A client picks the format of its connection by sending, as its very first
+// frame, a 2-byte frame in the server's default format holding
+// NEGOTIATION_MARKER and the code of the format it wants. The server echoes
+// that frame back (still in the old format) and uses the new one for
+// everything after it, in both directions. The code may also carry
+// MOI_Compression.NEGOTIATION_BIT. The marker never starts a writeUTF payload
+// (modified UTF-8 has no 0xff byte), so legacy clients, even one whose first
+// frame is empty, are never taken for a negotiation.
+public enum MOI_HeaderFormat {
+	Short(2, 0xffffL),
+	Int(4, 0xffffffffL),
+	Varint(0x80, 0x7ffffffffL);
+
+	public static final long INCOMPLETE = -1;
+	// first byte of the payload of a negotiation request, followed by the code
+	public static final byte NEGOTIATION_MARKER = (byte)0xff;
+	public static final int NEGOTIATION_LENGTH = 2;
+
+	private final int code;
+	private final long maxLength;
+
+	MOI_HeaderFormat(int code, long maxLength) {
+		this.code = code;
+		this.maxLength = maxLength;
+	}
+
+	public int code() {
+		return code;
+	}
+
+	public long maxLength() {
+		return maxLength;
+	}
+
+	public static MOI_HeaderFormat fromCode(int code) throws IOException {
+		for (MOI_HeaderFormat format : values()) {
+			if (format.code == code) {
+				return format;
+			}
+		}
+		throw new IOException("Unknown header format " + code);
+	}
+
+	public int headerLength(long length) {
+		switch (this) {
+			case Short:
+				return 2;
+			case Int:
+				return 4;
+			default:
+				int bytes = 1;
+				while ((length >>>= 7) != 0) {
+					bytes++;
+				}
+				return bytes;
+		}
+	}
+
+	public void put(ByteBuffer dst, long length) {
+		if (length < 0 || length > maxLength) {
+			throw new IllegalArgumentException("Message too long for a " + this + " header: " + length + " bytes");
+		}
+		switch (this) {
+			case Short:
+				dst.putShort((short)length);
+				break;
+			case Int:
+				dst.putInt((int)length);
+				break;
+			default:
+				while ((length & ~0x7fL) != 0) {
+					dst.put((byte)((length & 0x7f) | 0x80));
+					length >>>= 7;
+				}
+				dst.put((byte)length);
+				break;
+		}
+	}
+
+	// Reads a header starting at index without moving the buffer's position.
+	// Returns INCOMPLETE when fewer bytes than the header are available;
+	// otherwise (payload length << 3) | header length, to avoid allocating.
+	public long get(ByteBuffer src, int index, int available) throws IOException {
+		switch (this) {
+			case Short:
+				if (available < 2) {
+					return INCOMPLETE;
+				}
+				return ((long)(((src.get(index) & 0xff) << 8) | (src.get(index + 1) & 0xff)) << 3) | 2;
+			case Int:
+				if (available < 4) {
+					return INCOMPLETE;
+				}
+				return ((src.getInt(index) & 0xffffffffL) << 3) | 4;
+			default:
+				long length = 0;
+				for (int i = 0; i < 5; i++) {
+					if (i >= available) {
+						return INCOMPLETE;
+					}
+					int b = src.get(index + i);
+					length |= (long)(b & 0x7f) << (7 * i);
+					if ((b & 0x80) == 0) {
+						return (length << 3) | (i + 1);
+					}
+				}
+				throw new IOException("Varint frame header longer than 5 bytes");
+		}
+	}
+}
@@ -0,0 +1,328 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+// Append-only journal of received messages, made of pre-allocated segment
+// files mapped in memory. Reactor threads append records (a 4-byte header
+// and the payload, copied straight from the connection's buffer into the
+// mapping) and register what to do once the record is durable; a flusher
+// thread forces the dirty part of the segments every group commit interval,
+// or sooner when enough bytes are waiting, and then runs the callbacks of
+// everything it made durable, in append order. One force() thus covers all
+// the messages appended meanwhile instead of one fsync per message.
+//
+// Segments are named after the offset of their first byte, offsets growing
+// across segments; a record that does not fit in what is left of a segment
+// goes to the next one, the rest of the segment staying zeroed (a zero
+// header marks the end of the records). The flusher prepares the next
+// segment before the current one is full, so appends rarely wait for a file
+// to be created. A new journal starts after the segments already in the
+// directory.
+//
+// The header is the payload length with two flags in its high bits: a
+// streamed frame is journaled chunk by chunk, so FIRST_PART and LAST_PART
+// tell where each of its frames starts and ends. A whole message has both
+// (so even an empty one has a non-zero header).
+public class MOI_Journal {
+	public static final int RECORD_HEADER_SIZE = 4;
+	public static final int FIRST_PART = 1 << 31;
+	public static final int LAST_PART = 1 << 30;
+	public static final int MAX_RECORD_LENGTH = LAST_PART - 1;
+
+	private final File directory;
+	private final int segmentSize;
+	private final long groupCommitNanos;
+	private final long groupCommitBytes;
+
+	// segments with records not forced yet (the last one is the current one)
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private Segment current;
+	private Segment next = null;
+	// offset after the last record appended / forced
+	private long appendedOffset;
+	private long durableOffset;
+	private final ArrayDeque<Ack> acks = new ArrayDeque<Ack>();
+	private boolean closed = false;
+	private final Thread flusher;
+
+	private long forces = 0;
+	private long records = 0;
+
+	public MOI_Journal(File directory, int segmentSize, long groupCommitInterval, TimeUnit unit, long groupCommitBytes) throws IOException {
+		if (segmentSize <= RECORD_HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment too small");
+		}
+		if (segmentSize - RECORD_HEADER_SIZE > MAX_RECORD_LENGTH) {
+			throw new IllegalArgumentException("Segment too large");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the journal directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.groupCommitNanos = unit.toNanos(groupCommitInterval);
+		this.groupCommitBytes = groupCommitBytes;
+
+		long base = 0;
+		File[] existing = directory.listFiles();
+		if (existing != null) {
+			for (File file : existing) {
+				String name = file.getName();
+				if (name.startsWith("journal-") && name.endsWith(".seg")) {
+					long offset = Long.parseLong(name.substring(8, name.length() - 4));
+					base = Math.max(base, offset + file.length());
+				}
+			}
+		}
+		current = new Segment(directory, base, segmentSize);
+		segments.add(current);
+		appendedOffset = base;
+		durableOffset = base;
+
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "MOI_JournalFlusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public synchronized long getDurableOffset() {
+		return durableOffset;
+	}
+
+	public synchronized long getForces() {
+		return forces;
+	}
+
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	// Appends the payload (from its position to its limit, left as they were)
+	// as a whole message and returns the offset after the record. onDurable,
+	// if not null, is run by the flusher thread once the record has been
+	// forced to disk.
+	public long append(ByteBuffer payload, Runnable onDurable) throws IOException {
+		return append(payload, FIRST_PART | LAST_PART, onDurable);
+	}
+
+	// Same for a chunk of a streamed frame; flags says whether it is the
+	// FIRST_PART and / or the LAST_PART of the frame
+	public long append(ByteBuffer payload, int flags, Runnable onDurable) throws IOException {
+		if ((flags & ~(FIRST_PART | LAST_PART)) != 0) {
+			throw new IllegalArgumentException("Unknown record flags " + Integer.toHexString(flags));
+		}
+		int length = payload.remaining();
+		int recordLength = RECORD_HEADER_SIZE + length;
+		if (recordLength > segmentSize) {
+			throw new IOException("Record of " + length + " bytes larger than a journal segment");
+		}
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Journal closed");
+			}
+			if (current.writePosition + recordLength > segmentSize) {
+				roll();
+			}
+			int position = current.writePosition;
+			current.map.putInt(position, flags | length);
+			current.map.put(position + RECORD_HEADER_SIZE, payload, payload.position(), length);
+			current.writePosition += recordLength;
+			appendedOffset = current.baseOffset + current.writePosition;
+			records++;
+			if (onDurable != null) {
+				acks.add(new Ack(appendedOffset, onDurable));
+			}
+			if (appendedOffset - durableOffset >= groupCommitBytes) {
+				notifyAll();
+			}
+			return appendedOffset;
+		}
+	}
+
+	// Forces what is left, runs the pending callbacks and closes the segments
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			segments.clear();
+			if (next != null) {
+				next.close();
+				next = null;
+			}
+		}
+	}
+
+	private void roll() throws IOException {
+		// the rest of the old segment stays in the deque until it is forced
+		Segment segment = next;
+		next = null;
+		long base = current.baseOffset + segmentSize;
+		if (segment == null || segment.baseOffset != base) {
+			if (segment != null) {
+				segment.close();
+			}
+			segment = new Segment(directory, base, segmentSize);
+		}
+		current = segment;
+		segments.add(current);
+		appendedOffset = current.baseOffset;
+	}
+
+	private void flushLoop() {
+		List<Segment> toForce = new ArrayList<Segment>();
+		List<Ack> done = new ArrayList<Ack>();
+		boolean finished = false;
+		while (!finished) {
+			long target;
+			int[] forcedUpTo;
+			synchronized (this) {
+				long deadline = System.nanoTime() + groupCommitNanos;
+				long wait;
+				while (!closed && appendedOffset - durableOffset < groupCommitBytes
+						&& (wait = deadline - System.nanoTime()) > 0) {
+					try {
+						TimeUnit.NANOSECONDS.timedWait(this, wait);
+					} catch (InterruptedException e) {
+						closed = true;
+					}
+				}
+				finished = closed;
+				target = appendedOffset;
+				toForce.clear();
+				for (Segment segment : segments) {
+					if (segment.forcedPosition < segment.writePosition) {
+						toForce.add(segment);
+					}
+				}
+				forcedUpTo = new int[toForce.size()];
+				for (int i = 0; i < forcedUpTo.length; i++) {
+					forcedUpTo[i] = toForce.get(i).writePosition;
+				}
+			}
+
+			if (!toForce.isEmpty()) {
+				// appends go on meanwhile: this is where commits are grouped
+				for (int i = 0; i < forcedUpTo.length; i++) {
+					Segment segment = toForce.get(i);
+					segment.map.force(segment.forcedPosition, forcedUpTo[i] - segment.forcedPosition);
+				}
+				synchronized (this) {
+					forces++;
+					for (int i = 0; i < forcedUpTo.length; i++) {
+						toForce.get(i).forcedPosition = forcedUpTo[i];
+					}
+					// drop the full segments that are completely forced
+					while (segments.size() > 1 && segments.peekFirst().forcedPosition == segments.peekFirst().writePosition) {
+						try {
+							segments.pollFirst().close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+					durableOffset = Math.max(durableOffset, target);
+					while (!acks.isEmpty() && acks.peekFirst().offset <= durableOffset) {
+						done.add(acks.pollFirst());
+					}
+				}
+			} else {
+				synchronized (this) {
+					durableOffset = Math.max(durableOffset, target);
+				}
+			}
+
+			for (Ack ack : done) {
+				try {
+					ack.onDurable.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			done.clear();
+			prepareNextSegment();
+		}
+	}
+
+	// Creates the next segment file, outside the lock, once the current one
+	// is half full
+	private void prepareNextSegment() {
+		long base;
+		synchronized (this) {
+			if (closed || next != null || current.writePosition < segmentSize / 2) {
+				return;
+			}
+			base = current.baseOffset + segmentSize;
+		}
+		try {
+			Segment segment = new Segment(directory, base, segmentSize);
+			synchronized (this) {
+				if (next == null && !closed) {
+					next = segment;
+					return;
+				}
+			}
+			segment.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static class Segment {
+		final long baseOffset;
+		final RandomAccessFile file;
+		final FileChannel channel;
+		final MappedByteBuffer map;
+		int writePosition = 0;
+		int forcedPosition = 0;
+
+		Segment(File directory, long baseOffset, int size) throws IOException {
+			this.baseOffset = baseOffset;
+			this.file = new RandomAccessFile(new File(directory, String.format("journal-%020d.seg", baseOffset)), "rw");
+			file.setLength(size);
+			this.channel = file.getChannel();
+			this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		void close() throws IOException {
+			channel.close();
+			file.close();
+		}
+	}
+
+	private static class Ack {
+		final long offset;
+		final Runnable onDurable;
+
+		Ack(long offset, Runnable onDurable) {
+			this.offset = offset;
+			this.onDurable = onDurable;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// Histogram of durations in nanoseconds with one bucket per power of two, so
+// recording is a couple of instructions and needs no allocation. It has a
+// single writer (the reactor's thread); other threads may read it at any time
+// and see slightly stale counts.
+public class MOI_LatencyHistogram {
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private volatile long count = 0;
+	private volatile long max = 0;
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		int bucket = BUCKETS - Long.numberOfLeadingZeros(nanos);
+		counts.lazySet(bucket, counts.get(bucket) + 1);
+		count++;
+		if (nanos > max) {
+			max = nanos;
+		}
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	// Upper bound, in nanoseconds, of the bucket holding the given percentile
+	public long getPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		long target = (long)Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target && seen > 0) {
+				return (i == 0) ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+			}
+		}
+		return 0;
+	}
+
+	public String toString() {
+		return "count=" + count
+				+ ", p50<=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(50)) + "us"
+				+ ", p99<=" + TimeUnit.NANOSECONDS.toMicros(getPercentile(99)) + "us"
+				+ ", max=" + TimeUnit.NANOSECONDS.toMicros(max) + "us";
+	}
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+
+// Outbound path of a connection, split in two lanes so that small control
+// replies (acks, pongs, errors) do not wait behind megabytes of bulk data.
+// The control lane is always written first, except that a bulk frame that has
+// been partly written is finished before: frames are never interleaved.
+// Frames in the same lane keep their order; frames in different lanes may
+// overtake each other. Bulk frames queued while a streamed frame is being
+// sent (whose chunks are still to come) are held back until it is complete.
+public class MOI_OutboundLanes {
+	public enum Priority {
+		Control,
+		Bulk
+	}
+
+	private final MOI_OutboundQueue control;
+	private final MOI_OutboundQueue bulk;
+	// bulk frames waiting for the streamed frame in progress to be complete
+	private final MOI_OutboundQueue held;
+	private boolean streaming = false;
+
+	public MOI_OutboundLanes(MOI_BufferPool pool) {
+		this.control = new MOI_OutboundQueue(pool, 4);
+		this.bulk = new MOI_OutboundQueue(pool);
+		this.held = new MOI_OutboundQueue(pool, 4);
+	}
+
+	public void add(ByteBuffer view, MOI_SharedBuffer owner, Priority priority) {
+		if (priority == Priority.Control) {
+			control.add(view, owner, true);
+		} else if (streaming) {
+			held.add(view, owner, true);
+		} else {
+			bulk.add(view, owner, true);
+		}
+	}
+
+	// Part (header or chunk) of a streamed frame, in the bulk lane
+	public void addStreamPart(ByteBuffer view, boolean frameEnd) {
+		bulk.add(view, null, frameEnd);
+		streaming = !frameEnd;
+		if (frameEnd) {
+			held.transferTo(bulk);
+		}
+	}
+
+	public boolean isEmpty() {
+		return control.isEmpty() && bulk.isEmpty() && held.isEmpty();
+	}
+
+	// Whether something can be written now: the control lane is held back
+	// while the rest of a bulk frame has not been queued yet
+	public boolean canWrite() {
+		return !bulk.isEmpty() || (!control.isEmpty() && bulk.atFrameBoundary());
+	}
+
+	public long getQueuedBytes() {
+		return control.getQueuedBytes() + bulk.getQueuedBytes() + held.getQueuedBytes();
+	}
+
+	public void writeTo(GatheringByteChannel channel) throws IOException {
+		if (!control.isEmpty()) {
+			if (!bulk.atFrameBoundary()) {
+				bulk.writeTo(channel, true);
+				if (!bulk.atFrameBoundary()) {
+					return;
+				}
+			}
+			control.writeTo(channel, false);
+			if (!control.isEmpty()) {
+				return;
+			}
+		}
+		bulk.writeTo(channel, false);
+	}
+
+	// Only to be called when canWrite()
+	public SSLEngineResult wrapTo(SSLEngine engine, ByteBuffer dst) throws SSLException {
+		if (!control.isEmpty() && bulk.atFrameBoundary()) {
+			return control.wrapTo(engine, dst, false);
+		}
+		return bulk.wrapTo(engine, dst, !control.isEmpty());
+	}
+
+	public void clear() {
+		control.clear();
+		bulk.clear();
+		held.clear();
+		streaming = false;
+	}
+}
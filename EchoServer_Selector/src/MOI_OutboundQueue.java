@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+
+// Frames waiting to be written to a client. The frames are kept in a ring of
+// ByteBuffers so that the pending ones can be handed to a single gathering
+// write(ByteBuffer[], offset, length) without copying them anywhere. Buffers
+// are given back to the pool once they have been completely written, or, for
+// views over a MOI_SharedBuffer, the reference on it is released.
+//
+// A frame may be queued in several buffers (a streamed frame is a header and
+// its chunks); each entry records whether it ends a frame so that
+// MOI_OutboundLanes can tell when another queue may be written without
+// splitting a frame.
+public class MOI_OutboundQueue {
+	private final MOI_BufferPool pool;
+	private ByteBuffer[] buffers;
+	// owner of each queued view, or null when the buffer itself is pooled
+	private MOI_SharedBuffer[] owners;
+	// position of each buffer when queued, and whether it is the last of a frame
+	private int[] starts;
+	private boolean[] frameEnds;
+	// the last buffer released did not end its frame
+	private boolean openFrame = false;
+	private int head = 0;
+	private int count = 0;
+	private long queuedBytes = 0;
+
+	public MOI_OutboundQueue(MOI_BufferPool pool) {
+		this(pool, 16);
+	}
+
+	public MOI_OutboundQueue(MOI_BufferPool pool, int initialCapacity) {
+		this.pool = pool;
+		buffers = new ByteBuffer[initialCapacity];
+		owners = new MOI_SharedBuffer[initialCapacity];
+		starts = new int[initialCapacity];
+		frameEnds = new boolean[initialCapacity];
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	// No frame has been partly written: the next byte written starts a frame
+	public boolean atFrameBoundary() {
+		return !openFrame && (count == 0 || buffers[head].position() == starts[head]);
+	}
+
+	public void add(ByteBuffer buffer) {
+		add(buffer, null, true);
+	}
+
+	public void add(ByteBuffer view, MOI_SharedBuffer owner, boolean frameEnd) {
+		if (count == buffers.length) {
+			grow();
+		}
+		int tail = (head + count) % buffers.length;
+		buffers[tail] = view;
+		owners[tail] = owner;
+		starts[tail] = view.position();
+		frameEnds[tail] = frameEnd;
+		count++;
+		queuedBytes += view.remaining();
+	}
+
+	// Writes as much as the channel accepts (only up to the end of the frame
+	// being written when toFrameEnd is set); returns the number of bytes
+	// written. Fully written buffers are dropped from the queue.
+	public long writeTo(GatheringByteChannel channel, boolean toFrameEnd) throws IOException {
+		long total = 0;
+		while (count > 0 && !(toFrameEnd && atFrameBoundary())) {
+			int length = span(toFrameEnd);
+			long expected = 0;
+			for (int i = head; i < head + length; i++) {
+				expected += buffers[i].remaining();
+			}
+			long written = channel.write(buffers, head, length);
+			total += written;
+			queuedBytes -= written;
+			removeWritten();
+			if (written < expected) {
+				// socket buffer is full
+				break;
+			}
+		}
+		return total;
+	}
+
+	// Encrypts as much of the queue as fits in one TLS record into dst, the
+	// same way writeTo() hands the pending buffers to a gathering write.
+	public SSLEngineResult wrapTo(SSLEngine engine, ByteBuffer dst, boolean toFrameEnd) throws SSLException {
+		int length = span(toFrameEnd);
+		SSLEngineResult result = engine.wrap(buffers, head, length, dst);
+		queuedBytes -= result.bytesConsumed();
+		removeWritten();
+		return result;
+	}
+
+	// Moves every queued buffer, untouched, to the tail of the target queue
+	public void transferTo(MOI_OutboundQueue target) {
+		while (count > 0) {
+			target.add(buffers[head], owners[head], frameEnds[head]);
+			queuedBytes -= buffers[head].remaining();
+			buffers[head] = null;
+			owners[head] = null;
+			head = (head + 1) % buffers.length;
+			count--;
+		}
+		head = 0;
+	}
+
+	// Number of buffers from the head to hand to a single write: the pending
+	// buffers are contiguous up to the end of the array
+	private int span(boolean toFrameEnd) {
+		int length = Math.min(count, buffers.length - head);
+		if (toFrameEnd) {
+			for (int i = 0; i < length; i++) {
+				if (frameEnds[head + i]) {
+					return i + 1;
+				}
+			}
+		}
+		return length;
+	}
+
+	public void clear() {
+		while (count > 0) {
+			releaseHead();
+		}
+		head = 0;
+		queuedBytes = 0;
+		openFrame = false;
+	}
+
+	private void removeWritten() {
+		while (count > 0 && !buffers[head].hasRemaining()) {
+			releaseHead();
+		}
+		if (count == 0) {
+			head = 0;
+		}
+	}
+
+	private void releaseHead() {
+		openFrame = !frameEnds[head];
+		if (owners[head] != null) {
+			owners[head].release();
+			owners[head] = null;
+		} else {
+			pool.release(buffers[head]);
+		}
+		buffers[head] = null;
+		head = (head + 1) % buffers.length;
+		count--;
+	}
+
+	private void grow() {
+		ByteBuffer[] tmp = new ByteBuffer[buffers.length * 2];
+		MOI_SharedBuffer[] tmpOwners = new MOI_SharedBuffer[buffers.length * 2];
+		int[] tmpStarts = new int[buffers.length * 2];
+		boolean[] tmpFrameEnds = new boolean[buffers.length * 2];
+		for (int i = 0; i < count; i++) {
+			tmp[i] = buffers[(head + i) % buffers.length];
+			tmpOwners[i] = owners[(head + i) % buffers.length];
+			tmpStarts[i] = starts[(head + i) % buffers.length];
+			tmpFrameEnds[i] = frameEnds[(head + i) % buffers.length];
+		}
+		buffers = tmp;
+		owners = tmpOwners;
+		starts = tmpStarts;
+		frameEnds = tmpFrameEnds;
+		head = 0;
+	}
+}
@@ -1,70 +1,330 @@
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
-public class MOI_Reactor {
-	private ArrayList<MOI_EventHandler> handlers = new ArrayList<MOI_EventHandler>();
+// A reactor either owns the listening socket (and optionally hands the accepted
+// clients to the sub-reactors of a MOI_ReactorGroup) or is one of those
+// sub-reactors, which only serve the clients given to them.
+public class MOI_Reactor implements Runnable {
 	private Selector selector = null;
 	private ServerSocketChannel server = null;
 	private int port = 8080;
+	// extra addresses the acceptor listens on besides the TCP port, such as
+	// a UnixDomainSocketAddress for clients on the same host
+	private final List<SocketAddress> extraListeners = new ArrayList<SocketAddress>();
 	private MOI_Acceptor myAcceptor = null;
+	private MOI_ReactorGroup workers = null;
+	private Thread loopThread = null;
+	// work handed over by other threads, run by ours once per loop iteration
+	private MOI_TaskQueue tasks = null;
+	private int taskQueueCapacity = 4096;
+	private final AtomicInteger connections = new AtomicInteger(0);
+	// idle timeouts and delayed tasks; its next deadline is the select timeout
+	private final MOI_TimingWheel timers = new MOI_TimingWheel();
+	// loop stall detection, off unless a threshold is set
+	private long stallThresholdMillis = 0;
+	private MOI_Watchdog watchdog = null;
+	// per-connection shaping of what clients send (0 = unlimited)
+	private long bytesPerSecond = 0;
+	private long messagesPerSecond = 0;
 
 	public MOI_Reactor(int port, MOI_Acceptor acceptor) {
+		this(port, acceptor, null);
+	}
+
+	public MOI_Reactor(int port, MOI_Acceptor acceptor, MOI_ReactorGroup workers) {
 		this.port = port;
 		this.myAcceptor = acceptor;
+		this.workers = workers;
+	}
+
+	// sub-reactor: no listening socket, clients come from the main reactor
+	public MOI_Reactor() {
 	}
 
 	public Selector getSelector() {
 		return this.selector;
 	}
-	
+
 	public ServerSocketChannel getServer() {
 		return this.server;
 	}
-	
-	public void addHandler(MOI_EventHandler handler) {
-		handlers.add(handler);
+
+	// Also accept clients on this address (same framing and handlers); must be
+	// called before wait4events()
+	public void addListener(SocketAddress address) {
+		extraListeners.add(address);
+	}
+
+	public int getConnectionCount() {
+		return this.connections.get();
+	}
+
+	// Registers the channel and attaches the handler that will receive its
+	// events. Must be called from the reactor's thread (see register()).
+	public SelectionKey addHandler(SelectableChannel channel, int ops, MOI_EventHandler handler) throws ClosedChannelException {
+		return channel.register(selector, ops, handler);
+	}
+
+	// Cancels the key, closes its channel and lets the handler know. Does
+	// nothing if the key has already been removed, so a failure seen by
+	// several callers does not release the handler twice.
+	public void removeHandler(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+		MOI_EventHandler handler = (MOI_EventHandler)key.attachment();
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+		}
+		if (handler instanceof MOI_Connection) {
+			connections.decrementAndGet();
+		}
+		if (handler != null) {
+			handler.handlerRemoved(this, key);
+		}
+	}
+
+	// Runs the task on the reactor's thread after the delay. Like addHandler,
+	// it must be called from the reactor's thread.
+	public MOI_TimingWheel.Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		return timers.schedule(task, delay, unit);
+	}
+
+	// Reactor that must serve the next accepted client
+	public MOI_Reactor nextReactor() {
+		return (workers == null) ? this : workers.next();
+	}
+
+	// Reports loop iterations that take longer than the threshold, with the
+	// reactor thread's stack; must be called before the loop starts.
+	public void setStallThreshold(long threshold, TimeUnit unit) {
+		this.stallThresholdMillis = unit.toMillis(threshold);
+		if (workers != null) {
+			workers.setStallThreshold(threshold, unit);
+		}
+	}
+
+	// Token buckets (holding up to one second's worth) limiting how fast each
+	// client is read from; applies to the clients registered afterwards.
+	public void setRateLimits(long bytesPerSecond, long messagesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.messagesPerSecond = messagesPerSecond;
+		if (workers != null) {
+			workers.setRateLimits(bytesPerSecond, messagesPerSecond);
+		}
+	}
+
+	public long getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	public long getMessagesPerSecond() {
+		return this.messagesPerSecond;
+	}
+
+	public MOI_Watchdog getWatchdog() {
+		return this.watchdog;
+	}
+
+	public MOI_TaskQueue getTaskQueue() {
+		return this.tasks;
 	}
-	
+
+	// Must be a power of two; only taken into account before open()
+	public void setTaskQueueCapacity(int capacity) {
+		this.taskQueueCapacity = capacity;
+	}
+
+	public void open() throws IOException {
+		if (selector == null) {
+			selector = Selector.open();
+			tasks = new MOI_TaskQueue(taskQueueCapacity, selector);
+		}
+	}
+
+	public boolean inLoopThread() {
+		return Thread.currentThread() == loopThread;
+	}
+
+	// Runs the task on the reactor's thread (after what is already queued), so
+	// other threads can register channels, change interest ops or write without
+	// touching the Selector themselves. Can be called from any thread once the
+	// reactor is open; returns false if the queue is full.
+	public boolean submit(Runnable task) {
+		return tasks.offer(task);
+	}
+
+	// Same, but the task is never refused: for threads that must not wait for
+	// a busy reactor (see MOI_TaskQueue.put)
+	public void put(Runnable task) {
+		tasks.put(task);
+	}
+
+	// Registers an accepted client in this reactor. It may be called from any
+	// thread: when it is not the reactor's own, the registration is submitted
+	// to the loop thread.
+	public void register(final SocketChannel client, final MOI_Connection connection) throws IOException {
+		connections.incrementAndGet();
+		if (Thread.currentThread() == loopThread) {
+			try {
+				doRegister(client, connection);
+			} catch (IOException e) {
+				connections.decrementAndGet();
+				throw e;
+			}
+			return;
+		}
+		boolean queued = submit(new Runnable() {
+			public void run() {
+				try {
+					doRegister(client, connection);
+				} catch (IOException e) {
+					e.printStackTrace();
+					connections.decrementAndGet();
+					try {
+						client.close();
+					} catch (IOException ioe) {
+					}
+				}
+			}
+		});
+		if (!queued) {
+			connections.decrementAndGet();
+			throw new IOException("Reactor overloaded, connection refused");
+		}
+	}
+
+	private void doRegister(SocketChannel client, MOI_Connection connection) throws ClosedChannelException {
+		SelectionKey clientKey = addHandler(client, SelectionKey.OP_READ, connection);
+		connection.registered(this, clientKey);
+		connection.getServer().connection(clientKey);
+	}
+
+	private void listen(SocketAddress address) throws IOException {
+		ServerSocketChannel listener;
+		if (address instanceof UnixDomainSocketAddress) {
+			removeStaleSocket(((UnixDomainSocketAddress)address).getPath());
+			listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			listener = ServerSocketChannel.open();
+		}
+		listener.bind(address);
+		listener.configureBlocking(false);
+		addHandler(listener, SelectionKey.OP_ACCEPT, myAcceptor);
+		System.out.println("Server listening on " + address);
+	}
+
+	// A socket file left behind by a previous run would make bind fail, but
+	// anything else at that path is not ours to delete
+	private static void removeStaleSocket(Path path) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		if (!attributes.isOther()) {
+			throw new IOException("Cannot listen on " + path + ": it exists and is not a socket");
+		}
+		Files.delete(path);
+	}
+
+	public void run() {
+		wait4events();
+	}
+
 	public void wait4events() {
 		try {
-			selector = Selector.open(); 
-			server = ServerSocketChannel.open(); 
-			server.socket().bind(new InetSocketAddress(port)); 
-			server.configureBlocking(false); 
-			server.register(selector, SelectionKey.OP_ACCEPT);
-			System.out.println("Server started on port number " + this.port);
-			
+			loopThread = Thread.currentThread();
+			open();
+			if (stallThresholdMillis > 0) {
+				watchdog = new MOI_Watchdog(loopThread, stallThresholdMillis, TimeUnit.MILLISECONDS, System.err);
+				watchdog.start();
+			}
+			if (myAcceptor != null) {
+				server = ServerSocketChannel.open();
+				server.socket().bind(new InetSocketAddress(port));
+				server.configureBlocking(false);
+				addHandler(server, SelectionKey.OP_ACCEPT, myAcceptor);
+				for (SocketAddress address : extraListeners) {
+					listen(address);
+				}
+				if (workers != null) {
+					workers.start();
+				}
+				System.out.println("Server started on port number " + this.port);
+			}
+
+			boolean tasksLeft = false;
 			while (true) {
-    			selector.select(0);
-
-    			for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) { 
-    				SelectionKey key = i.next(); 
-    				try { 
-    					i.remove(); 
-    					if (key.isConnectable()) { 
-//    						((SocketChannel)key.channel()).finishConnect();
-    						System.out.println("isConnectable!!!");
-    					} 
-    					if (key.isAcceptable()) {
-    						myAcceptor.handleEvent(this, key);
-    					} 
-    					if (key.isReadable()) {
-//    						System.out.println("Mensaje recibido: " + readIncomingMessage(key));
-    						System.out.println("Un cliente que envía un mensaje");
-						} 
-    				} 
+    			long timeout = timers.nextTimeout(System.nanoTime());
+    			if (timeout == 0 || tasksLeft) {
+    				selector.selectNow();
+    			} else {
+    				// a negative timeout means no timers: wait for I/O only
+    				selector.select(Math.max(timeout, 0));
+    			}
+    			if (watchdog != null) {
+    				watchdog.iterationStarted(System.nanoTime());
+    			}
+    			tasksLeft = tasks.drain();
+
+    			for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+    				SelectionKey key = i.next();
+    				i.remove();
+    				MOI_EventHandler handler = (MOI_EventHandler)key.attachment();
+    				try {
+    					if (!key.isValid()) {
+    						continue;
+    					}
+    					if (watchdog == null) {
+    						handler.handleEvent(this, key, key.readyOps());
+    					} else {
+    						long start = System.nanoTime();
+    						watchdog.handlerStarted(handler);
+    						try {
+    							handler.handleEvent(this, key, key.readyOps());
+    						} finally {
+    							watchdog.handlerFinished(handler, System.nanoTime() - start);
+    						}
+    					}
+    				}
+    				catch (SocketException se) {
+    					// reset by the client: a disconnection, not a failure
+    					removeHandler(key);
+    				}
     				catch (Exception ioe) {
     					ioe.printStackTrace();
-//    					resetKey(key);
-//    					disconnected(key); 
-    				} 
-    			} 
+    					removeHandler(key);
+    				}
+    			}
+    			timers.expire(System.nanoTime());
+    			if (watchdog != null) {
+    				watchdog.iterationFinished(System.nanoTime());
+    			}
 			}
 		}
 		catch (Exception e) {
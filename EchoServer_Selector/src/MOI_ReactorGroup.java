@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+// Sub-reactors that serve the clients accepted by the main reactor. Each one
+// has its own Selector and its own thread.
+public class MOI_ReactorGroup {
+	public enum Balancing {
+		RoundRobin,
+		LeastConnections
+	}
+
+	private final MOI_Reactor[] reactors;
+	private final Balancing balancing;
+	// only touched by the main reactor's thread
+	private int nextIndex = 0;
+
+	public MOI_ReactorGroup() {
+		this(Runtime.getRuntime().availableProcessors(), Balancing.RoundRobin);
+	}
+
+	public MOI_ReactorGroup(int size, Balancing balancing) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("A reactor group needs at least one reactor");
+		}
+		this.balancing = balancing;
+		this.reactors = new MOI_Reactor[size];
+		for (int i = 0; i < size; i++) {
+			reactors[i] = new MOI_Reactor();
+		}
+	}
+
+	public int size() {
+		return reactors.length;
+	}
+
+	public MOI_Reactor getReactor(int index) {
+		return reactors[index];
+	}
+
+	public void setStallThreshold(long threshold, TimeUnit unit) {
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i].setStallThreshold(threshold, unit);
+		}
+	}
+
+	public void setRateLimits(long bytesPerSecond, long messagesPerSecond) {
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i].setRateLimits(bytesPerSecond, messagesPerSecond);
+		}
+	}
+
+	public void start() throws IOException {
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i].open();
+		}
+		for (int i = 0; i < reactors.length; i++) {
+			Thread thread = new Thread(reactors[i], "MOI_SubReactor-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public MOI_Reactor next() {
+		if (balancing == Balancing.LeastConnections) {
+			MOI_Reactor best = reactors[0];
+			for (int i = 1; i < reactors.length; i++) {
+				if (reactors[i].getConnectionCount() < best.getConnectionCount()) {
+					best = reactors[i];
+				}
+			}
+			return best;
+		}
+		MOI_Reactor reactor = reactors[nextIndex];
+		nextIndex = (nextIndex + 1) % reactors.length;
+		return reactor;
+	}
+}
@@ -1,30 +1,187 @@
 
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 public class MOI_Server {
 	public static final int BUFFER_SIZE = 1024;
 	public static final int BUFFER_HEADER_SIZE = 2;
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final MOI_HeaderFormat[] HEADER_FORMATS = MOI_HeaderFormat.values();
+	private static final byte[] SUB = "SUB ".getBytes(UTF8);
+	private static final byte[] UNSUB = "UNSUB ".getBytes(UTF8);
+	private static final byte[] PUB = "PUB ".getBytes(UTF8);
+	
+	// Decoders are expensive to build and not thread safe: every reactor
+	// thread keeps one, along with the CharBuffer it decodes into.
+	private static final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>() {
+		protected CharsetDecoder initialValue() {
+			return UTF8.newDecoder();
+		}
+	};
+	private static final ThreadLocal<CharBuffer> decodedText = new ThreadLocal<CharBuffer>() {
+		protected CharBuffer initialValue() {
+			return CharBuffer.allocate(BUFFER_SIZE);
+		}
+	};
 	
 	private final int port;
 	private MOI_Reactor reactor; 
+	private final MOI_BufferPool bufferPool = new MOI_BufferPool();
+	// outbound bytes queued for a client at which we stop / resume reading from it
+	private long highWatermark = 64 * 1024;
+	private long lowWatermark = 16 * 1024;
+	// raw mode echoes the payload bytes without ever decoding them
+	private boolean rawMode = true;
+	// header of new connections, until they negotiate another one
+	private MOI_HeaderFormat headerFormat = MOI_HeaderFormat.Short;
+	// frames longer than this are delivered to chunkReceived in chunks
+	private long streamThreshold = 64 * 1024;
+	private int chunkSize = 16 * 1024;
+	// clients that send nothing for this long are disconnected (0 = never)
+	private long idleTimeout = 0;
+	// publish/subscribe commands: "SUB topic", "UNSUB topic", "PUB topic payload"
+	private boolean pubSub = false;
+	private final ConcurrentMap<String, Set<SelectionKey>> subscribers = new ConcurrentHashMap<String, Set<SelectionKey>>();
+	// clients may negotiate per-message deflate; only messages of at least
+	// compressionThreshold bytes are compressed
+	private boolean compression = true;
+	private int compressionThreshold = 256;
+	// connections are encrypted when set
+	private MOI_TlsContext tlsContext = null;
+	// when set, every message is journaled and only echoed once durable
+	private MOI_Journal journal = null;
 	
     
     protected MOI_Server(int port) {
     	this.port = port;
     }
     
+    public MOI_BufferPool getBufferPool() {
+    	return bufferPool;
+    }
+
+    public MOI_TlsContext getTlsContext() {
+    	return tlsContext;
+    }
+
+    // Only affects the connections accepted afterwards
+    public void setTlsContext(MOI_TlsContext tlsContext) {
+    	this.tlsContext = tlsContext;
+    }
+
+    public MOI_Journal getJournal() {
+    	return journal;
+    }
+
+    public void setJournal(MOI_Journal journal) {
+    	this.journal = journal;
+    }
+
+    public boolean isCompressionEnabled() {
+    	return compression;
+    }
+
+    public int getCompressionThreshold() {
+    	return compressionThreshold;
+    }
+
+    public void setCompression(boolean enabled, int threshold) {
+    	this.compression = enabled;
+    	this.compressionThreshold = threshold;
+    }
+
+    public boolean isRawMode() {
+    	return rawMode;
+    }
+
+    public void setRawMode(boolean rawMode) {
+    	this.rawMode = rawMode;
+    }
+
+    public MOI_HeaderFormat getHeaderFormat() {
+    	return headerFormat;
+    }
+
+    public void setHeaderFormat(MOI_HeaderFormat headerFormat) {
+    	this.headerFormat = headerFormat;
+    }
+
+    public long getStreamThreshold() {
+    	return streamThreshold;
+    }
+
+    public int getChunkSize() {
+    	return chunkSize;
+    }
+
+    public void setStreaming(long streamThreshold, int chunkSize) {
+    	if (streamThreshold < 0 || chunkSize <= 0) {
+    		throw new IllegalArgumentException("Wrong stream threshold or chunk size");
+    	}
+    	this.streamThreshold = streamThreshold;
+    	this.chunkSize = chunkSize;
+    }
+
+    public boolean isPubSub() {
+    	return pubSub;
+    }
+
+    public void setPubSub(boolean pubSub) {
+    	this.pubSub = pubSub;
+    }
+
+    public long getIdleTimeout() {
+    	return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout, TimeUnit unit) {
+    	this.idleTimeout = unit.toMillis(idleTimeout);
+    }
+
+    public long getHighWatermark() {
+    	return highWatermark;
+    }
+
+    public long getLowWatermark() {
+    	return lowWatermark;
+    }
+
+    public void setWatermarks(long lowWatermark, long highWatermark) {
+    	if (lowWatermark < 0 || lowWatermark > highWatermark) {
+    		throw new IllegalArgumentException("Low watermark must be between 0 and the high watermark");
+    	}
+    	this.lowWatermark = lowWatermark;
+    	this.highWatermark = highWatermark;
+    }
+
     protected void resetKey(SelectionKey key) { 
     	key.cancel(); 
+    	try {
+    		key.channel().close();
+    	} catch (IOException e) {
+    	}
     }
 
 	public long bytesToLength(byte[] bytes) {
@@ -35,104 +192,548 @@ public class MOI_Server {
 	}
 
     public static String bb_to_str(ByteBuffer buffer){
-    	Charset charset = Charset.forName("UTF-8");
-    	CharsetDecoder decoder = charset.newDecoder();
-    	
-    	String data = "";
     	try{
-    		int old_position = buffer.position();
-    		data = decoder.decode(buffer).toString();
-    		// reset buffer's position to its original so it is not altered:
-    		buffer.position(old_position);  
+    		return decode(buffer).toString();
     	}catch (Exception e){
     		e.printStackTrace();
     		return "";
     	}
-    	return data;
     }    
 
-    private String readIncomingMessage(SelectionKey key) throws IOException {
-    	SocketChannel cliente = (SocketChannel)key.channel();
-    	String message;
-    	
-    	ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-    	buffer.clear();
-    	
-    	if (cliente.read(buffer) == -1) {
-    		throw new IOException("Read on closed key");
+    // Decodes the remaining bytes of the buffer (without moving its position)
+    // with the calling thread's decoder. The CharBuffer returned is reused by
+    // the next call made from the same thread.
+    public static CharBuffer decode(ByteBuffer buffer) throws CharacterCodingException {
+    	CharsetDecoder decoder = decoders.get();
+    	CharBuffer out = decodedText.get();
+    	int maxChars = (int)(buffer.remaining() * decoder.maxCharsPerByte()) + 1;
+    	if (out.capacity() < maxChars) {
+    		out = CharBuffer.allocate(maxChars);
+    		decodedText.set(out);
     	}
+    	out.clear();
+    	decoder.reset();
     	
-    	buffer.flip(); 
+    	int old_position = buffer.position();
+    	CoderResult result = decoder.decode(buffer, out, true);
+    	if (!result.isError()) {
+    		result = decoder.flush(out);
+    	}
+    	// reset buffer's position to its original so it is not altered:
+    	buffer.position(old_position);
+    	if (result.isError()) {
+    		result.throwException();
+    	}
+    	out.flip();
+    	return out;
+    }
+
+    // Reads what is available into the connection's accumulation buffer and
+    // delivers every complete frame; a trailing partial frame is kept there
+    // until the rest of it arrives. When the client has closed the connection
+    // it is removed once what it sent before has been delivered.
+    protected void readIncomingMessages(SelectionKey key) throws IOException {
+    	SocketChannel cliente = (SocketChannel)key.channel();
+    	MOI_Connection connection = (MOI_Connection)key.attachment();
     	
-    	ByteBuffer msg = readMessage(key, buffer);
-    	message = MOI_Server.bb_to_str(msg);
+    	int read = connection.read(cliente);
+    	deliverMessages(key);
+    	if (read == -1) {
+    		if (connection.isThrottled()) {
+    			// frames are held back by the throttle: its timer delivers them
+    			// and then removes the connection
+    			connection.setInputClosed();
+    		} else {
+    			connection.getReactor().removeHandler(key);
+    		}
+    	}
+    }
 
-    	return message;
+    // Hands the frames already in the connection's buffer to messageReceived /
+    // chunkReceived
+    protected void deliverMessages(SelectionKey key) throws IOException {
+    	MOI_Connection connection = (MOI_Connection)key.attachment();
+    	ByteBuffer msg;
+    	while ((msg = connection.nextFrame()) != null) {
+    		if (connection.isChunk()) {
+    			chunkReceived(msg, connection.getChunkOffset(), connection.getStreamLength(), key);
+    		} else {
+    			messageReceived(msg, key);
+    		}
+    	}
+    	connection.compact();
     }
 
-    private ByteBuffer readMessage(SelectionKey key, ByteBuffer readBuffer) {
-    	int bytesToRead; 
-    	
-    	if (readBuffer.remaining() > BUFFER_HEADER_SIZE) { // must have at least enough bytes to read the size of the message    		
-     		byte[] lengthBytes = new byte[BUFFER_HEADER_SIZE];
-    		readBuffer.get(lengthBytes);
-			bytesToRead = (int)bytesToLength(lengthBytes);
-    		if ((readBuffer.limit() - readBuffer.position()) < bytesToRead) { 
-    			// Not enough data - prepare for writing again 
-    			if (readBuffer.limit() == readBuffer.capacity()) {
-    	    		// message may be longer than buffer => resize buffer to message size
-    				int oldCapacity = readBuffer.capacity();
-    				ByteBuffer tmp = ByteBuffer.allocate(bytesToRead + BUFFER_HEADER_SIZE);
-    				readBuffer.position(0);
-    				tmp.put(readBuffer);
-    				readBuffer = tmp;   				
-    				readBuffer.position(oldCapacity); 
-	    			readBuffer.limit(readBuffer.capacity()); 
-    	
-    	    		return null;
-    	    	} else {
-    	    		// rest for writing
-	    			readBuffer.position(readBuffer.limit()); 
-	    			readBuffer.limit(readBuffer.capacity()); 
-	    			return null; 
-    	    	}
-    		} 
-    	} else { 
-    		// Not enough data - prepare for writing again 
-    		readBuffer.position(readBuffer.limit()); 
-    		readBuffer.limit(readBuffer.capacity()); 
-    		return null; 
-    	} 
-    	
-    	byte[] resultMessage = new byte[bytesToRead];
-    	readBuffer.get(resultMessage, 0, bytesToRead); 
-    	// remove read message from buffer
-    	int remaining = readBuffer.remaining();
-    	readBuffer.limit(readBuffer.capacity());
-    	readBuffer.compact();
-    	readBuffer.position(0);
-    	readBuffer.limit(remaining);
-    	
-    	return ByteBuffer.wrap(resultMessage);
-    } 
+    // Sends a message to the client; must be called from the thread of the
+    // reactor serving it. On a multiplexed connection it is the reply to the
+    // request being handled (see getRequestId).
+    public void send(SelectionKey key, ByteBuffer message) throws IOException {
+    	send(key, message, MOI_OutboundLanes.Priority.Bulk);
+    }
+
+    // Control messages (acks, pongs, errors...) are written before any bulk
+    // data already queued for the client, and may overtake it.
+    public void send(SelectionKey key, ByteBuffer message, MOI_OutboundLanes.Priority priority) throws IOException {
+    	MOI_Connection connection = (MOI_Connection)key.attachment();
+    	connection.send(key, encode(connection, connection.getRequestId(), message), priority);
+    }
+
+    // Id of the request being handled by messageReceived / chunkReceived on a
+    // multiplexed connection; keep it to reply later with sendAsync.
+    public int getRequestId(SelectionKey key) {
+    	return ((MOI_Connection)key.attachment()).getRequestId();
+    }
+
+    // Sends a message from any thread (e.g. a business thread replying some
+    // time after the request): the frame is built by the caller and queued by
+    // the reactor serving the client. Returns false if that reactor's task
+    // queue is full. On a multiplexed connection the message carries the
+    // given request id, or 0 when none is given.
+    public boolean sendAsync(SelectionKey key, ByteBuffer message) {
+    	return sendAsync(key, 0, message, MOI_OutboundLanes.Priority.Bulk);
+    }
+
+    public boolean sendAsync(SelectionKey key, ByteBuffer message, MOI_OutboundLanes.Priority priority) {
+    	return sendAsync(key, 0, message, priority);
+    }
 
-    protected void messageReceived(ByteBuffer message, SelectionKey key) {
-    	System.out.println("Mensaje recibido");
+    public boolean sendAsync(final SelectionKey key, int requestId, ByteBuffer message, final MOI_OutboundLanes.Priority priority) {
+    	MOI_Connection connection = (MOI_Connection)key.attachment();
+    	ByteBuffer frame = encode(connection, requestId, message);
+    	return queueFrame(key, connection, frame, priority);
+    }
+
+    // Has the client's reactor queue an encoded frame; releases it if the
+    // reactor's task queue is full
+    private boolean queueFrame(SelectionKey key, MOI_Connection connection, ByteBuffer frame, MOI_OutboundLanes.Priority priority) {
+    	boolean queued = connection.getReactor().submit(sendTask(key, connection, frame, priority));
+    	if (!queued) {
+    		bufferPool.release(frame);
+    	}
+    	return queued;
+    }
+
+    private Runnable sendTask(final SelectionKey key, final MOI_Connection connection, final ByteBuffer frame, final MOI_OutboundLanes.Priority priority) {
+    	return new Runnable() {
+    		public void run() {
+    			if (!key.isValid()) {
+    				bufferPool.release(frame);
+    				return;
+    			}
+    			try {
+    				connection.send(key, frame, priority);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    				connection.getReactor().removeHandler(key);
+    			}
+    		}
+    	};
+    }
+
+    // Subscriptions can be changed from the thread of the client's reactor only
+    public void subscribe(String topic, SelectionKey key) {
+    	Set<SelectionKey> keys = subscribers.get(topic);
+    	if (keys == null) {
+    		Set<SelectionKey> created = ConcurrentHashMap.newKeySet();
+    		keys = subscribers.putIfAbsent(topic, created);
+    		if (keys == null) {
+    			keys = created;
+    		}
+    	}
+    	keys.add(key);
+    	((MOI_Connection)key.attachment()).getTopics().add(topic);
+    }
+
+    public void unsubscribe(String topic, SelectionKey key) {
+    	Set<SelectionKey> keys = subscribers.get(topic);
+    	if (keys != null) {
+    		keys.remove(key);
+    	}
+    	((MOI_Connection)key.attachment()).getTopics().remove(topic);
+    }
+
+    protected void unsubscribeAll(SelectionKey key) {
+    	Set<String> topics = ((MOI_Connection)key.attachment()).getTopics();
+    	for (String topic : topics) {
+    		Set<SelectionKey> keys = subscribers.get(topic);
+    		if (keys != null) {
+    			keys.remove(key);
+    		}
+    	}
+    	topics.clear();
+    }
+
+    // Sends the payload to every subscriber of the topic, from any thread. The
+    // payload is copied once into a shared buffer and each reactor serving
+    // subscribers gets a single task for all of them, so a large topic takes
+    // one slot of its task queue and not one per subscriber. On its own
+    // thread, where the connections' settings are only changed, the reactor
+    // encodes the frame once per header format, compression and multiplexing
+    // setting in use, and each subscriber queues a view of it rather than a
+    // copy; the buffers go back to the pool when the last subscriber has
+    // written them. On multiplexed connections it carries request id 0.
+    // Returns the number of subscribers it was queued to.
+    public int publish(String topic, ByteBuffer payload) {
+    	Set<SelectionKey> keys = subscribers.get(topic);
+    	if (keys == null || keys.isEmpty()) {
+    		return 0;
+    	}
+    	Map<MOI_Reactor, List<SelectionKey>> byReactor = new IdentityHashMap<MOI_Reactor, List<SelectionKey>>();
+    	for (SelectionKey key : keys) {
+    		if (!key.isValid()) {
+    			continue;
+    		}
+    		MOI_Reactor reactor = ((MOI_Connection)key.attachment()).getReactor();
+    		List<SelectionKey> group = byReactor.get(reactor);
+    		if (group == null) {
+    			group = new ArrayList<SelectionKey>();
+    			byReactor.put(reactor, group);
+    		}
+    		group.add(key);
+    	}
+    	if (byReactor.isEmpty()) {
+    		return 0;
+    	}
+    	final MOI_SharedBuffer shared = new MOI_SharedBuffer(bufferPool, copy(payload));
+    	int delivered = 0;
+    	for (Map.Entry<MOI_Reactor, List<SelectionKey>> entry : byReactor.entrySet()) {
+    		final MOI_Reactor reactor = entry.getKey();
+    		final List<SelectionKey> group = entry.getValue();
+    		shared.retain();
+    		if (reactor.inLoopThread()) {
+    			deliver(reactor, group, shared);
+    			delivered += group.size();
+    			continue;
+    		}
+    		boolean queued = reactor.submit(new Runnable() {
+    			public void run() {
+    				deliver(reactor, group, shared);
+    			}
+    		});
+    		if (queued) {
+    			delivered += group.size();
+    		} else {
+    			shared.release();
+    		}
+    	}
+    	// drop the reference taken when copying
+    	shared.release();
+    	return delivered;
+    }
+
+    // Runs on the thread of the reactor serving the keys; releases the
+    // reference to the payload it has been given
+    private void deliver(MOI_Reactor reactor, List<SelectionKey> keys, MOI_SharedBuffer payload) {
+    	MOI_SharedBuffer[] frames = new MOI_SharedBuffer[HEADER_FORMATS.length * 4];
+    	try {
+    		for (SelectionKey key : keys) {
+    			if (!key.isValid()) {
+    				continue;
+    			}
+    			MOI_Connection connection = (MOI_Connection)key.attachment();
+    			int format = connection.getHeaderFormat().ordinal() * 4 + (connection.getCompression() != null ? 2 : 0)
+    					+ (connection.isMultiplexed() ? 1 : 0);
+    			if (frames[format] == null) {
+    				frames[format] = new MOI_SharedBuffer(bufferPool, encode(connection, 0, payload.duplicate()));
+    			}
+    			sendShared(reactor, key, connection, frames[format].retain());
+    		}
+    	} finally {
+    		// drop the references taken when encoding
+    		for (MOI_SharedBuffer frame : frames) {
+    			if (frame != null) {
+    				frame.release();
+    			}
+    		}
+    		payload.release();
+    	}
+    }
+
+    private void sendShared(MOI_Reactor reactor, SelectionKey key, MOI_Connection connection, MOI_SharedBuffer frame) {
+    	if (!key.isValid()) {
+    		frame.release();
+    		return;
+    	}
+    	try {
+    		connection.send(key, frame.duplicate(), frame, MOI_OutboundLanes.Priority.Bulk);
+    	} catch (IOException e) {
+    		// the reference is now held by the outbound queue, released on removal
+    		e.printStackTrace();
+    		reactor.removeHandler(key);
+    	}
+    }
+
+    private ByteBuffer encode(MOI_Connection connection, int requestId, ByteBuffer message) {
+    	MOI_HeaderFormat format = connection.getHeaderFormat();
+    	boolean multiplexed = connection.isMultiplexed();
+    	MOI_Compression compression = connection.getCompression();
+    	if (compression != null) {
+    		return compression.encode(format, multiplexed, requestId, message, compressionThreshold);
+    	}
+    	int length = message.remaining() + (multiplexed ? MOI_Connection.REQUEST_ID_LENGTH : 0);
+    	ByteBuffer frame = bufferPool.acquire(format.headerLength(length) + length);
+    	format.put(frame, length);
+    	if (multiplexed) {
+    		frame.putInt(requestId);
+    	}
+    	int position = message.position();
+    	frame.put(message);
+    	message.position(position);
+    	frame.flip();
+    	return frame;
+    }
+
+    // Runs a publish/subscribe command; returns false if the message is not one
+    protected boolean commandReceived(ByteBuffer message, SelectionKey key) {
+    	int start = message.position();
+    	int limit = message.limit();
+    	if (startsWith(message, SUB)) {
+    		subscribe(text(message, start + SUB.length, limit), key);
+    	} else if (startsWith(message, UNSUB)) {
+    		unsubscribe(text(message, start + UNSUB.length, limit), key);
+    	} else if (startsWith(message, PUB)) {
+    		int topicEnd = start + PUB.length;
+    		while (topicEnd < limit && message.get(topicEnd) != ' ') {
+    			topicEnd++;
+    		}
+    		String topic = text(message, start + PUB.length, topicEnd);
+    		message.position(Math.min(topicEnd + 1, limit));
+    		publish(topic, message);
+    		message.position(start);
+    	} else {
+    		return false;
+    	}
+    	return true;
+    }
+
+    private static boolean startsWith(ByteBuffer message, byte[] prefix) {
+    	if (message.remaining() < prefix.length) {
+    		return false;
+    	}
+    	int start = message.position();
+    	for (int i = 0; i < prefix.length; i++) {
+    		if (message.get(start + i) != prefix[i]) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    // Decodes message[from, to) and leaves the buffer's position and limit as they were
+    private static String text(ByteBuffer message, int from, int to) {
+    	int position = message.position();
+    	int limit = message.limit();
+    	message.limit(to);
+    	message.position(from);
+    	String text = bb_to_str(message);
+    	message.limit(limit);
+    	message.position(position);
+    	return text;
+    }
+
+    // Starts a frame whose payload will follow in sendChunk calls
+    public void sendHeader(SelectionKey key, long length) throws IOException {
+    	MOI_Connection connection = (MOI_Connection)key.attachment();
+    	MOI_HeaderFormat format = connection.getHeaderFormat();
+    	ByteBuffer header = bufferPool.acquire(format.headerLength(length));
+    	format.put(header, length);
+    	header.flip();
+    	connection.sendStreamHeader(key, header, length);
+    }
+
+    public void sendChunk(SelectionKey key, ByteBuffer chunk) throws IOException {
+    	((MOI_Connection)key.attachment()).sendStreamChunk(key, copy(chunk));
+    }
+
+    private ByteBuffer copy(ByteBuffer chunk) {
+    	ByteBuffer copy = bufferPool.acquire(chunk.remaining());
+    	int position = chunk.position();
+    	copy.put(chunk);
+    	chunk.position(position);
+    	copy.flip();
+    	return copy;
+    }
+
+    // Journals the message and echoes it once it is durable. The reply is
+    // encoded now, while the message is still valid, and queued by the
+    // journal's flusher on the client's reactor, without ever waiting for it
+    // (a busy reactor must not hold back the group commits of the others).
+    private void echoWhenDurable(final SelectionKey key, ByteBuffer message) throws IOException {
+    	final MOI_Connection connection = (MOI_Connection)key.attachment();
+    	final ByteBuffer frame = encode(connection, connection.getRequestId(), message);
+    	final Runnable reply = sendTask(key, connection, frame, MOI_OutboundLanes.Priority.Bulk);
+    	try {
+    		journal.append(message, new Runnable() {
+    			public void run() {
+    				connection.getReactor().put(reply);
+    			}
+    		});
+    	} catch (IOException e) {
+    		bufferPool.release(frame);
+    		throw e;
+    	}
+    }
+
+    // Same for a chunk of a streamed frame (with the frame's header before
+    // the first one)
+    private void echoChunkWhenDurable(final SelectionKey key, ByteBuffer chunk, final long offset, final long total) throws IOException {
+    	final MOI_Connection connection = (MOI_Connection)key.attachment();
+    	final ByteBuffer copy = copy(chunk);
+    	final Runnable reply = new Runnable() {
+    		public void run() {
+    			if (!key.isValid()) {
+    				bufferPool.release(copy);
+    				return;
+    			}
+    			try {
+    				if (offset == 0) {
+    					sendHeader(key, total);
+    				}
+    				connection.sendStreamChunk(key, copy);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    				connection.getReactor().removeHandler(key);
+    			}
+    		}
+    	};
+    	try {
+    		journal.append(chunk, journalFlags(chunk, offset, total), new Runnable() {
+    			public void run() {
+    				connection.getReactor().put(reply);
+    			}
+    		});
+    	} catch (IOException e) {
+    		bufferPool.release(copy);
+    		throw e;
+    	}
+    }
+
+    // Where the chunk is in its frame, for its journal record
+    private static int journalFlags(ByteBuffer chunk, long offset, long total) {
+    	int flags = 0;
+    	if (offset == 0) {
+    		flags |= MOI_Journal.FIRST_PART;
+    	}
+    	if (offset + chunk.remaining() == total) {
+    		flags |= MOI_Journal.LAST_PART;
+    	}
+    	return flags;
+    }
+
+    // The message is a read-only view over the connection's read buffer, only
+    // valid during this call. In raw mode it is echoed back to its sender as it
+    // is; otherwise it is decoded and handed to textReceived. With a journal
+    // every message is appended to it first, and echoed only once durable.
+    protected void messageReceived(ByteBuffer message, SelectionKey key) throws IOException {
+    	if (pubSub && commandReceived(message, key)) {
+    		return;
+    	}
+    	if (rawMode) {
+    		if (journal != null) {
+    			echoWhenDurable(key, message);
+    		} else {
+    			send(key, message);
+    		}
+    	} else {
+    		if (journal != null) {
+    			journal.append(message, null);
+    		}
+    		textReceived(decode(message), key);
+    	}
+    }
+
+    // A chunk of a frame longer than the stream threshold; offset is where it
+    // starts in the frame and total the frame's length. Like messages, it is
+    // only valid during this call. In raw mode the frame is echoed chunk by
+    // chunk, so it is never held in memory as a whole. The first chunk starts
+    // with the request id and compression flag, when negotiated, as they were
+    // on the wire.
+    protected void chunkReceived(ByteBuffer chunk, long offset, long total, SelectionKey key) throws IOException {
+    	if (rawMode && journal != null) {
+    		echoChunkWhenDurable(key, chunk, offset, total);
+    	} else if (rawMode) {
+    		if (offset == 0) {
+    			sendHeader(key, total);
+    		}
+    		sendChunk(key, chunk);
+    	} else {
+    		if (journal != null) {
+    			journal.append(chunk, journalFlags(chunk, offset, total), null);
+    		}
+    		if (offset + chunk.remaining() == total) {
+    			System.out.println("Mensaje recibido: " + total + " bytes");
+    		}
+    	}
+    }
+
+    // The CharBuffer is reused for the next message decoded by this thread
+    protected void textReceived(CharBuffer text, SelectionKey key) throws IOException {
+    	System.out.println("Mensaje recibido: " + text);
     }
      
     protected void connection(SelectionKey key) {
     	System.out.println("Conexión establecida");
     }
 
+    protected void idle(SelectionKey key) {
+    	System.out.println("Idle client, disconnecting");
+    }
+
     protected void disconnected(SelectionKey key) {
     	System.out.println("Client disconnected");
     }
 
     
+	// Optional arguments: number of sub-reactors serving the clients (defaults
+	// to one per core, 0 runs accept and reads on a single reactor thread) and
+	// "text" to decode and print the messages instead of echoing them, or
+	// "pubsub" to also accept publish/subscribe commands.
+	// With -Dmoi.unixSocket=<path> it also listens on that Unix domain socket,
+	// and with -Dmoi.stallThreshold=<ms> it reports reactor loop stalls.
 	public static void main(String args[]) {
+		int subReactors = Runtime.getRuntime().availableProcessors();
+		if (args.length > 0) {
+			subReactors = Integer.parseInt(args[0]);
+		}
+		
 		MOI_Server server = new MOI_Server(8080);
-		MOI_Acceptor acceptor = new MOI_Acceptor();
-		MOI_Reactor reactor = new MOI_Reactor(8080, acceptor);
+		server.setRawMode(args.length < 2 || !args[1].equals("text"));
+		server.setPubSub(args.length >= 2 && args[1].equals("pubsub"));
+		server.setIdleTimeout(5, TimeUnit.MINUTES);
+		String journalDirectory = System.getProperty("moi.journal");
+		if (journalDirectory != null) {
+			try {
+				server.setJournal(new MOI_Journal(new File(journalDirectory), 64 * 1024 * 1024, 2, TimeUnit.MILLISECONDS, 1024 * 1024));
+			} catch (IOException e) {
+				System.out.println("Cannot open the journal in " + journalDirectory + ": " + e);
+				return;
+			}
+		}
+		String keyStore = System.getProperty("moi.tls.keystore");
+		if (keyStore != null) {
+			try {
+				char[] password = System.getProperty("moi.tls.password", "").toCharArray();
+				server.setTlsContext(MOI_TlsContext.fromKeyStore(keyStore, password));
+			} catch (Exception e) {
+				System.out.println("Cannot load the TLS keystore " + keyStore + ": " + e);
+				return;
+			}
+		}
+		MOI_Acceptor acceptor = new MOI_Acceptor(server);
+		MOI_ReactorGroup workers = null;
+		if (subReactors > 0) {
+			workers = new MOI_ReactorGroup(subReactors, MOI_ReactorGroup.Balancing.RoundRobin);
+		}
+		MOI_Reactor reactor = new MOI_Reactor(8080, acceptor, workers);
+		reactor.setRateLimits(Long.getLong("moi.bytesPerSecond", 0), Long.getLong("moi.messagesPerSecond", 0));
+		long stallThreshold = Long.getLong("moi.stallThreshold", 0);
+		if (stallThreshold > 0) {
+			reactor.setStallThreshold(stallThreshold, TimeUnit.MILLISECONDS);
+		}
+		String unixSocket = System.getProperty("moi.unixSocket");
+		if (unixSocket != null) {
+			reactor.addListener(UnixDomainSocketAddress.of(unixSocket));
+		}
 		reactor.wait4events();
 	}
 }
@@ -0,0 +1,49 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// A pooled buffer shared by several owners, e.g. one frame published to many
+// subscribers: each of them queues its own duplicate() view (independent
+// position, same bytes) and releases its reference once that view has been
+// written. The buffer goes back to the pool when the last reference is gone.
+public class MOI_SharedBuffer {
+	private final MOI_BufferPool pool;
+	private final ByteBuffer buffer;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	// Takes ownership of a buffer acquired from the pool, with one reference
+	public MOI_SharedBuffer(MOI_BufferPool pool, ByteBuffer buffer) {
+		this.pool = pool;
+		this.buffer = buffer;
+	}
+
+	public MOI_SharedBuffer retain() {
+		int count;
+		do {
+			count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Shared buffer already released");
+			}
+		} while (!references.compareAndSet(count, count + 1));
+		return this;
+	}
+
+	public void release() {
+		int count = references.decrementAndGet();
+		if (count == 0) {
+			pool.release(buffer);
+		} else if (count < 0) {
+			throw new IllegalStateException("Shared buffer released too many times");
+		}
+	}
+
+	public int getReferences() {
+		return references.get();
+	}
+
+	// View over the content (from position to limit) for one more owner; it
+	// must only be read, and not after that owner has released its reference.
+	public ByteBuffer duplicate() {
+		return buffer.duplicate();
+	}
+}
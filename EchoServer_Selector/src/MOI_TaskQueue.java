@@ -0,0 +1,181 @@
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+// Bounded multi-producer / single-consumer queue of tasks for a reactor.
+// Any thread can offer() without locking: producers claim a slot with a CAS on
+// the producer index and then publish their task in it. Only the reactor's
+// thread drains the queue, once per loop iteration.
+//
+// The selector is only woken up on the empty to non-empty transition, i.e.
+// when, after publishing its task, a producer sees that the consumer has
+// caught up with its slot (it has run everything before it and may be about
+// to block in select). Any other producer is behind someone who will wake it.
+//
+// Threads that must never wait for a reactor (the journal flusher, the TLS
+// handshake executor) put() their tasks instead: what does not fit goes to
+// an unbounded overflow list, run once the queue itself is empty, and every
+// task of such a thread goes there for as long as the list is not empty, so
+// its tasks still run in order.
+public class MOI_TaskQueue {
+	private final AtomicReferenceArray<Runnable> slots;
+	private final int mask;
+	private final Selector selector;
+	private final AtomicLong producerIndex = new AtomicLong(0);
+	// only advanced by the consumer
+	private final AtomicLong consumerIndex = new AtomicLong(0);
+	private final ConcurrentLinkedQueue<Runnable> overflow = new ConcurrentLinkedQueue<Runnable>();
+
+	private final AtomicLong submitted = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong overflowed = new AtomicLong(0);
+	private final AtomicLong wakeups = new AtomicLong(0);
+	private volatile int lastDrainSize = 0;
+	private volatile int maxDrainSize = 0;
+
+	public MOI_TaskQueue(int capacity, Selector selector) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("The capacity must be a power of two");
+		}
+		this.slots = new AtomicReferenceArray<Runnable>(capacity);
+		this.mask = capacity - 1;
+		this.selector = selector;
+	}
+
+	// Returns false, without queueing the task, when the queue is full
+	public boolean offer(Runnable task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		if (!enqueue(task)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	// Queues the task even when the queue is full (see above)
+	public void put(Runnable task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		if (overflow.isEmpty() && enqueue(task)) {
+			return;
+		}
+		overflow.add(task);
+		overflowed.incrementAndGet();
+		wakeups.incrementAndGet();
+		selector.wakeup();
+	}
+
+	private boolean enqueue(Runnable task) {
+		long index;
+		do {
+			index = producerIndex.get();
+			if (index - consumerIndex.get() > mask) {
+				return false;
+			}
+		} while (!producerIndex.compareAndSet(index, index + 1));
+
+		slots.set((int)(index & mask), task);
+		submitted.incrementAndGet();
+		if (consumerIndex.get() == index) {
+			wakeups.incrementAndGet();
+			selector.wakeup();
+		}
+		return true;
+	}
+
+	// Runs the queued tasks (at most one queue's worth, so that tasks queueing
+	// more tasks cannot keep the reactor here), then, if the queue is empty,
+	// up to as many overflowed ones; only called by the reactor's thread.
+	// Returns true when tasks are left that nothing may wake the selector
+	// for: the next one in the queue when it stopped at the limit (its
+	// producer may have seen the consumer behind and not woken it), or some
+	// still in the overflow list. The reactor must not block before draining
+	// again.
+	public boolean drain() {
+		long index = consumerIndex.get();
+		int drained = 0;
+		while (drained <= mask) {
+			int slot = (int)(index & mask);
+			Runnable task = slots.get(slot);
+			if (task == null) {
+				// empty, or the producer of this slot has not published yet
+				break;
+			}
+			slots.lazySet(slot, null);
+			consumerIndex.set(++index);
+			drained++;
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		if (drained > mask) {
+			updateDrainSize(drained);
+			return slots.get((int)(index & mask)) != null || !overflow.isEmpty();
+		}
+		// older tasks may still be in slots claimed but not published yet
+		if (producerIndex.get() == index) {
+			Runnable task;
+			for (int n = 0; n <= mask && (task = overflow.poll()) != null; n++) {
+				drained++;
+				try {
+					task.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		updateDrainSize(drained);
+		return !overflow.isEmpty();
+	}
+
+	private void updateDrainSize(int drained) {
+		lastDrainSize = drained;
+		if (drained > maxDrainSize) {
+			maxDrainSize = drained;
+		}
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	public long getDepth() {
+		return Math.max(0, producerIndex.get() - consumerIndex.get()) + overflow.size();
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getOverflowed() {
+		return overflowed.get();
+	}
+
+	public long getWakeups() {
+		return wakeups.get();
+	}
+
+	public int getLastDrainSize() {
+		return lastDrainSize;
+	}
+
+	public int getMaxDrainSize() {
+		return maxDrainSize;
+	}
+
+	public String toString() {
+		return "MOI_TaskQueue[depth=" + getDepth() + ", submitted=" + submitted.get() + ", rejected=" + rejected.get()
+				+ ", overflowed=" + overflowed.get() + ", wakeups=" + wakeups.get() + ", lastDrain=" + lastDrainSize + ", maxDrain=" + maxDrainSize + "]";
+	}
+}
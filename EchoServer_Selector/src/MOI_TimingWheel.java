@@ -0,0 +1,165 @@
+import java.util.concurrent.TimeUnit;
+
+
+// Hashed timing wheel: a ring of buckets, one per tick, each holding a doubly
+// linked list of timeouts. Scheduling and cancelling are O(1) whatever the
+// number of timeouts; a timeout further away than one turn of the wheel
+// waits for the remaining turns (rounds) in its bucket.
+//
+// It is not thread safe: it belongs to a reactor and is only used from the
+// reactor's thread, which calls expire() once per loop iteration and uses
+// nextTimeout() as its select timeout.
+public class MOI_TimingWheel {
+	public static final class Timeout {
+		private final MOI_TimingWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private int bucket = -1;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(MOI_TimingWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		// System.nanoTime() at which the task is due
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public boolean isPending() {
+			return bucket >= 0;
+		}
+
+		// Returns false if the task has already run or been cancelled
+		public boolean cancel() {
+			if (bucket < 0) {
+				return false;
+			}
+			wheel.remove(this);
+			return true;
+		}
+	}
+
+	private final Timeout[] buckets;
+	private final int mask;
+	private final long tickNanos;
+	private final long startTime;
+	// next tick to be processed by expire()
+	private long tick = 0;
+	private int size = 0;
+
+	public MOI_TimingWheel() {
+		this(10, TimeUnit.MILLISECONDS, 512);
+	}
+
+	public MOI_TimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		if (tickDuration <= 0 || ticksPerWheel <= 0 || (ticksPerWheel & (ticksPerWheel - 1)) != 0) {
+			throw new IllegalArgumentException("The tick must be positive and the ticks per wheel a power of two");
+		}
+		this.buckets = new Timeout[ticksPerWheel];
+		this.mask = ticksPerWheel - 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.startTime = System.nanoTime();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(delay);
+		Timeout timeout = new Timeout(this, task, deadline);
+		// round up, and never into a tick that has already been processed
+		long deadlineTick = (deadline - startTime + tickNanos - 1) / tickNanos;
+		if (deadlineTick < tick) {
+			deadlineTick = tick;
+		}
+		timeout.rounds = (deadlineTick - tick) / buckets.length;
+		timeout.bucket = (int)(deadlineTick & mask);
+		timeout.next = buckets[timeout.bucket];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		buckets[timeout.bucket] = timeout;
+		size++;
+		return timeout;
+	}
+
+	// Milliseconds until the next non-empty bucket is due: -1 when there are
+	// no timeouts at all, 0 when it is already due.
+	public long nextTimeout(long now) {
+		if (size == 0) {
+			return -1;
+		}
+		long t = tick;
+		for (int i = 0; i < buckets.length && buckets[(int)(t & mask)] == null; i++) {
+			t++;
+		}
+		long due = startTime + t * tickNanos - now;
+		if (due <= 0) {
+			return 0;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(due + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+	}
+
+	// Runs every task due at the given System.nanoTime(); returns how many ran.
+	// Exceptions thrown by a task are reported and do not stop the others.
+	public int expire(long now) {
+		long lastTick = (now - startTime) / tickNanos;
+		int expired = 0;
+		while (tick <= lastTick && size > 0) {
+			int idx = (int)(tick & mask);
+			tick++;
+			// unlink the due timeouts first, so that tasks cancelling or
+			// scheduling others do not disturb the walk through the bucket
+			Timeout due = null;
+			Timeout timeout = buckets[idx];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.rounds <= 0) {
+					remove(timeout);
+					timeout.next = due;
+					due = timeout;
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+			while (due != null) {
+				Timeout next = due.next;
+				due.next = null;
+				expired++;
+				try {
+					due.task.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				due = next;
+			}
+		}
+		if (size == 0 && tick <= lastTick) {
+			// nothing left to expire: skip the empty ticks in one go
+			tick = lastTick + 1;
+		}
+		return expired;
+	}
+
+	private void remove(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		size--;
+	}
+}
@@ -0,0 +1,75 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+
+// TLS settings shared by all the connections of a server: the SSLContext
+// (whose server session cache lets reconnecting clients resume their session
+// instead of doing a full handshake) and the executor that runs the engines'
+// delegated handshake tasks, so they never run on a reactor thread.
+public class MOI_TlsContext {
+	public static final int SESSION_CACHE_SIZE = 20000;
+	public static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+	private final SSLContext sslContext;
+	private final Executor handshakeExecutor;
+
+	public MOI_TlsContext(SSLContext sslContext, Executor handshakeExecutor) {
+		this.sslContext = sslContext;
+		this.handshakeExecutor = handshakeExecutor;
+		SSLSessionContext sessions = sslContext.getServerSessionContext();
+		sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+		sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+	}
+
+	// Server context for the key and certificate in a keystore file
+	public static MOI_TlsContext fromKeyStore(String path, char[] password) throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		InputStream in = new FileInputStream(path);
+		try {
+			keyStore.load(in, password);
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, password);
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(keyManagers.getKeyManagers(), null, null);
+
+		ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "MOI_TlsHandshake-" + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		return new MOI_TlsContext(sslContext, executor);
+	}
+
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	public Executor getHandshakeExecutor() {
+		return handshakeExecutor;
+	}
+
+	public SSLEngine createServerEngine() {
+		SSLEngine engine = sslContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		return engine;
+	}
+}
@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+
+// Non-blocking TLS for one connection, driven by the connection's reactor.
+// Encrypted bytes go through two pooled buffers (netIn, netOut); decrypted
+// data is unwrapped straight into the connection's read buffer and the
+// queued frames are wrapped straight from its outbound queue, so there is no
+// other copy of the application data.
+//
+// When the engine needs to run delegated tasks they are handed to the
+// context's executor; wrap and unwrap are not attempted until the callback
+// set with setTasksDoneCallback() has been run and tasksFinished() called
+// back on the reactor's thread.
+public class MOI_TlsSession {
+	public static final int UNWRAP_DONE = 0;
+	public static final int UNWRAP_OVERFLOW = 1;
+	public static final int UNWRAP_NEED_WRAP = 2;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final MOI_TlsContext context;
+	private final MOI_BufferPool pool;
+	private final SSLEngine engine;
+	// encrypted bytes read and not unwrapped yet (write mode)
+	private ByteBuffer netIn;
+	// encrypted bytes wrapped and not written yet (read mode)
+	private ByteBuffer netOut;
+	private boolean runningTasks = false;
+	private boolean inboundClosed = false;
+	private Runnable tasksDone = null;
+
+	public MOI_TlsSession(MOI_TlsContext context, MOI_BufferPool pool) throws SSLException {
+		this.context = context;
+		this.pool = pool;
+		this.engine = context.createServerEngine();
+		int packetSize = engine.getSession().getPacketBufferSize();
+		netIn = pool.acquire(packetSize);
+		netIn.clear();
+		netOut = pool.acquire(packetSize);
+		netOut.clear();
+		netOut.flip();
+		engine.beginHandshake();
+	}
+
+	// Run (on the executor's thread) once the delegated tasks have finished
+	public void setTasksDoneCallback(Runnable tasksDone) {
+		this.tasksDone = tasksDone;
+	}
+
+	public int getApplicationBufferSize() {
+		return engine.getSession().getApplicationBufferSize();
+	}
+
+	public boolean isHandshaking() {
+		return engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+	}
+
+	public boolean isRunningTasks() {
+		return runningTasks;
+	}
+
+	public boolean isInboundClosed() {
+		return inboundClosed;
+	}
+
+	public boolean hasPendingOutput() {
+		return netOut.hasRemaining();
+	}
+
+	public boolean needsWrap() {
+		return !runningTasks && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+	}
+
+	public void tasksFinished() {
+		runningTasks = false;
+	}
+
+	// Reads encrypted bytes from the channel; returns -1 at end of stream
+	public int read(ReadableByteChannel channel) throws IOException {
+		if (!netIn.hasRemaining()) {
+			netIn = grow(netIn, netIn.capacity() * 2);
+		}
+		int read = channel.read(netIn);
+		if (read == -1) {
+			inboundClosed = true;
+			try {
+				engine.closeInbound();
+			} catch (SSLException e) {
+				// peer closed without close_notify: nothing more to read anyway
+			}
+		}
+		return read;
+	}
+
+	// Decrypts as many records as possible into appIn. Returns UNWRAP_OVERFLOW
+	// when appIn has no room for the next record (grow it and call again),
+	// UNWRAP_NEED_WRAP when the engine must send something before going on,
+	// and UNWRAP_DONE when more input (or the delegated tasks) is needed.
+	public int unwrap(ByteBuffer appIn) throws IOException {
+		if (runningTasks || inboundClosed) {
+			return UNWRAP_DONE;
+		}
+		netIn.flip();
+		try {
+			while (netIn.hasRemaining()) {
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				switch (result.getStatus()) {
+					case BUFFER_OVERFLOW:
+						return UNWRAP_OVERFLOW;
+					case BUFFER_UNDERFLOW:
+						// incomplete record; make sure a whole one fits
+						int packetSize = engine.getSession().getPacketBufferSize();
+						if (netIn.capacity() < packetSize) {
+							netIn.compact();
+							netIn = grow(netIn, packetSize);
+							netIn.flip();
+						}
+						return UNWRAP_DONE;
+					case CLOSED:
+						inboundClosed = true;
+						return UNWRAP_DONE;
+					default:
+						break;
+				}
+				switch (result.getHandshakeStatus()) {
+					case NEED_TASK:
+						runDelegatedTasks();
+						return UNWRAP_DONE;
+					case NEED_WRAP:
+						return UNWRAP_NEED_WRAP;
+					default:
+						break;
+				}
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+					return UNWRAP_DONE;
+				}
+			}
+			return UNWRAP_DONE;
+		} finally {
+			netIn.compact();
+		}
+	}
+
+	// Writes what is pending, then wraps handshake messages or (once the
+	// handshake is over) the queued frames and writes them, until the socket
+	// buffer is full or there is nothing left. Check hasPendingOutput()
+	// afterwards to know whether OP_WRITE is needed.
+	public void flush(GatheringByteChannel channel, MOI_OutboundLanes outbound) throws IOException {
+		while (true) {
+			if (netOut.hasRemaining()) {
+				channel.write(netOut);
+				if (netOut.hasRemaining()) {
+					return;
+				}
+			}
+			if (runningTasks) {
+				return;
+			}
+			SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+			SSLEngineResult result;
+			netOut.clear();
+			if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+				result = engine.wrap(EMPTY, netOut);
+			} else if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && outbound.canWrite()) {
+				result = outbound.wrapTo(engine, netOut);
+			} else {
+				netOut.flip();
+				return;
+			}
+			netOut.flip();
+			switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+					netOut.flip();
+					continue;
+				case CLOSED:
+					if (!netOut.hasRemaining()) {
+						throw new IOException("TLS session closed");
+					}
+					break;
+				default:
+					break;
+			}
+			if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+			}
+		}
+	}
+
+	public void release() {
+		pool.release(netIn);
+		pool.release(netOut);
+		netIn = null;
+		netOut = null;
+	}
+
+	private void runDelegatedTasks() {
+		runningTasks = true;
+		context.getHandshakeExecutor().execute(new Runnable() {
+			public void run() {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				if (tasksDone != null) {
+					tasksDone.run();
+				}
+			}
+		});
+	}
+
+	// Bigger pooled buffer with the content (position to limit after a flip,
+	// i.e. the bytes written so far) of the old one, left in write mode
+	private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+		if (capacity <= buffer.capacity()) {
+			capacity = buffer.capacity() * 2;
+		}
+		ByteBuffer tmp = pool.acquire(capacity);
+		tmp.clear();
+		buffer.flip();
+		tmp.put(buffer);
+		pool.release(buffer);
+		return tmp;
+	}
+}
@@ -0,0 +1,133 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+
+// End-to-end check of the TLS support: creates a self-signed keystore with
+// keytool, starts an echo server with it and, for TLS 1.3 and 1.2, echoes
+// frames of several sizes over one connection and then reconnects to check
+// that the session is resumed instead of doing a full handshake. Exits with 1
+// on the first failure.
+//
+// TLS 1.3 sessions get a new id when they are resumed, so resumption is only
+// checked by id with TLS 1.2.
+//
+// usage: MOI_TlsSmokeTest [port]
+public class MOI_TlsSmokeTest {
+	private static final char[] PASSWORD = "moi-smoke".toCharArray();
+	private static final int[] SIZES = { 0, 1, 100, 16 * 1024, 60000 };
+	private static final int ROUNDS = 20;
+
+	public static void main(String args[]) throws Exception {
+		int port = 8443;
+		if (args.length > 0) {
+			port = Integer.parseInt(args[0]);
+		}
+
+		File keyStore = File.createTempFile("moi-smoke", ".p12");
+		keyStore.delete();
+		keyStore.deleteOnExit();
+		createKeyStore(keyStore);
+
+		MOI_Server server = new MOI_Server(port);
+		server.setRawMode(true);
+		server.setTlsContext(MOI_TlsContext.fromKeyStore(keyStore.getPath(), PASSWORD));
+		final MOI_Reactor reactor = new MOI_Reactor(port, new MOI_Acceptor(server), new MOI_ReactorGroup(2, MOI_ReactorGroup.Balancing.RoundRobin));
+		Thread loop = new Thread(new Runnable() {
+			public void run() {
+				reactor.wait4events();
+			}
+		}, "MOI_TlsSmokeTest-server");
+		loop.setDaemon(true);
+		loop.start();
+
+		boolean ok = check(port, "TLSv1.3") & check(port, "TLSv1.2");
+		System.out.println(ok ? "TLS smoke test passed." : "TLS smoke test failed.");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static void createKeyStore(File keyStore) throws IOException, InterruptedException {
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "moi", "-keyalg", "EC",
+				"-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+				"-keystore", keyStore.getPath(), "-storepass", new String(PASSWORD)).inheritIO().start();
+		if (process.waitFor() != 0) {
+			throw new IOException("keytool failed with " + process.exitValue());
+		}
+	}
+
+	// One context per protocol, so that its client session cache is what the
+	// second connection resumes from
+	private static boolean check(int port, String protocol) throws Exception {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { new TrustAll() }, null);
+
+		SSLSession first = echo(context, port, protocol);
+		SSLSession second = echo(context, port, protocol);
+		if (first == null || second == null) {
+			return false;
+		}
+		if (protocol.equals("TLSv1.2") && !Arrays.equals(first.getId(), second.getId())) {
+			System.out.println(protocol + ": the session was not resumed");
+			return false;
+		}
+		System.out.println(protocol + ": echo and reconnection ok");
+		return true;
+	}
+
+	// Echoes ROUNDS frames of every size, checking each reply; returns the
+	// session or null when an echo is wrong
+	private static SSLSession echo(SSLContext context, int port, String protocol) throws IOException {
+		SSLSocket socket = (SSLSocket)context.getSocketFactory().createSocket("localhost", port);
+		try {
+			socket.setEnabledProtocols(new String[] { protocol });
+			socket.setSoTimeout(10000);
+			socket.setTcpNoDelay(true);
+			socket.startHandshake();
+			// one TLS record per frame, not one for the header and one for the payload
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			for (int round = 0; round < ROUNDS; round++) {
+				for (int size : SIZES) {
+					byte[] payload = new byte[size];
+					Arrays.fill(payload, (byte)(round + size));
+					out.writeShort(size);
+					out.write(payload);
+					out.flush();
+					byte[] reply = new byte[in.readUnsignedShort()];
+					in.readFully(reply);
+					if (!Arrays.equals(payload, reply)) {
+						System.out.println(protocol + ": wrong echo of a " + size + " byte frame");
+						return null;
+					}
+				}
+			}
+			return socket.getSession();
+		} finally {
+			socket.close();
+		}
+	}
+
+	// The keystore is self-signed and only lives for the test
+	private static class TrustAll implements X509TrustManager {
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+}
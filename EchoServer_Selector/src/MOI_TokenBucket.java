@@ -0,0 +1,67 @@
+import java.util.concurrent.TimeUnit;
+
+
+// Token bucket refilled at a fixed rate per second, holding at most burst
+// tokens. consume() may take the bucket below zero (a read cannot be undone
+// once its bytes are known), which keeps the client waiting for the debt to
+// be paid back. Only used from the thread of the connection's reactor.
+public class MOI_TokenBucket {
+	private final long ratePerSecond;
+	private final long burst;
+	private double tokens;
+	private long lastRefill;
+
+	public MOI_TokenBucket(long ratePerSecond, long burst) {
+		if (ratePerSecond <= 0 || burst <= 0) {
+			throw new IllegalArgumentException("The rate and the burst must be positive");
+		}
+		this.ratePerSecond = ratePerSecond;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	public long getRatePerSecond() {
+		return ratePerSecond;
+	}
+
+	public double getTokens(long now) {
+		refill(now);
+		return tokens;
+	}
+
+	// Takes the tokens if there are that many
+	public boolean tryConsume(long amount, long now) {
+		refill(now);
+		if (tokens < amount) {
+			return false;
+		}
+		tokens -= amount;
+		return true;
+	}
+
+	// Takes the tokens even if it leaves the bucket in debt
+	public void consume(long amount, long now) {
+		refill(now);
+		tokens -= amount;
+	}
+
+	// Milliseconds until the bucket holds the given amount (0 if it already does)
+	public long millisUntil(double amount, long now) {
+		refill(now);
+		if (tokens >= amount) {
+			return 0;
+		}
+		double seconds = (amount - tokens) / ratePerSecond;
+		return Math.max(1, (long)Math.ceil(seconds * 1000));
+	}
+
+	private void refill(long now) {
+		long elapsed = now - lastRefill;
+		if (elapsed <= 0) {
+			return;
+		}
+		lastRefill = now;
+		tokens = Math.min(burst, tokens + (double)elapsed * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+	}
+}
@@ -0,0 +1,121 @@
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Watches a reactor's loop. The reactor records how long every loop iteration
+// (from the end of select to the next select) and every handler call take;
+// a monitor thread checks the iteration in progress and, when it has been
+// running for longer than the threshold, takes the reactor thread's stack
+// and reports it with the handler being run, so blocking calls that slip
+// into the loop can be found.
+public class MOI_Watchdog implements Runnable {
+	private final Thread reactorThread;
+	private final long thresholdNanos;
+	private final long checkIntervalMillis;
+	private final PrintStream out;
+
+	private final MOI_LatencyHistogram iterations = new MOI_LatencyHistogram();
+	// one histogram per handler class; only the reactor's thread adds to it
+	private final Map<Class<?>, MOI_LatencyHistogram> handlers = new ConcurrentHashMap<Class<?>, MOI_LatencyHistogram>();
+
+	// written by the reactor's thread, read by the monitor thread
+	private volatile long iterationStart = 0;
+	private volatile long iterationNumber = 0;
+	private volatile MOI_EventHandler currentHandler = null;
+	private long reportedIteration = -1;
+
+	private final AtomicLong stalls = new AtomicLong(0);
+
+	public MOI_Watchdog(Thread reactorThread, long threshold, TimeUnit unit, PrintStream out) {
+		this.reactorThread = reactorThread;
+		this.thresholdNanos = unit.toNanos(threshold);
+		// check a few times per threshold so a stall is caught soon after it starts
+		this.checkIntervalMillis = Math.max(1, unit.toMillis(threshold) / 4);
+		this.out = out;
+	}
+
+	public void start() {
+		Thread monitor = new Thread(this, "MOI_Watchdog-" + reactorThread.getName());
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	public MOI_LatencyHistogram getIterationHistogram() {
+		return iterations;
+	}
+
+	public Map<Class<?>, MOI_LatencyHistogram> getHandlerHistograms() {
+		return handlers;
+	}
+
+	public long getStalls() {
+		return stalls.get();
+	}
+
+	// --- called by the reactor's thread ---
+
+	public void iterationStarted(long now) {
+		iterationNumber++;
+		iterationStart = now;
+	}
+
+	public void iterationFinished(long now) {
+		iterations.record(now - iterationStart);
+		iterationStart = 0;
+	}
+
+	public void handlerStarted(MOI_EventHandler handler) {
+		currentHandler = handler;
+	}
+
+	public void handlerFinished(MOI_EventHandler handler, long nanos) {
+		currentHandler = null;
+		MOI_LatencyHistogram histogram = handlers.get(handler.getClass());
+		if (histogram == null) {
+			histogram = new MOI_LatencyHistogram();
+			handlers.put(handler.getClass(), histogram);
+		}
+		histogram.record(nanos);
+	}
+
+	// --- monitor thread ---
+
+	public void run() {
+		while (reactorThread.isAlive()) {
+			try {
+				Thread.sleep(checkIntervalMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long start = iterationStart;
+			long number = iterationNumber;
+			if (start == 0 || number == reportedIteration) {
+				continue;
+			}
+			long elapsed = System.nanoTime() - start;
+			if (elapsed > thresholdNanos) {
+				// report every stalled iteration once
+				reportedIteration = number;
+				report(elapsed, currentHandler, reactorThread.getStackTrace());
+			}
+		}
+	}
+
+	private void report(long elapsed, MOI_EventHandler handler, StackTraceElement[] stack) {
+		stalls.incrementAndGet();
+		StringBuilder sb = new StringBuilder();
+		sb.append("Reactor ").append(reactorThread.getName()).append(" stalled for ")
+				.append(TimeUnit.NANOSECONDS.toMillis(elapsed)).append(" ms");
+		if (handler != null) {
+			sb.append(" in ").append(handler.getClass().getName())
+					.append(" (").append(handler.getEventType()).append(")");
+		}
+		for (StackTraceElement element : stack) {
+			sb.append("\n\tat ").append(element);
+		}
+		out.println(sb);
+	}
+}
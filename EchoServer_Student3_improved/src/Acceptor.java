@@ -1,14 +1,21 @@
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
 public final class Acceptor extends EventHandler {
-
+	
 	private final ServerSocketChannel listener;
 	
 	public Acceptor(SocketAddress endpoint) throws IOException {
+		this(endpoint, false);
+	}
+	
+	// With reusePort several acceptors (each in its own reactor) listen on the same
+	// port and the kernel spreads the incoming connections across them
+	public Acceptor(SocketAddress endpoint, boolean reusePort) throws IOException {
 		if(endpoint == null) {
 			throw new NullPointerException();
 		}
@@ -16,6 +23,13 @@ public final class Acceptor extends EventHandler {
 		// Java SocketChannels required use non-blocking sockets with select
 		// also neither POSIX nor Windows required that
 		listener.configureBlocking(false);
+		if(reusePort) {
+			if(!listener.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				listener.close();
+				throw new IOException("SO_REUSEPORT is not supported on this platform");
+			}
+			listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
 		listener.socket().bind(endpoint);
 	}
 	
@@ -23,6 +37,10 @@ public final class Acceptor extends EventHandler {
 	public int handleEvent() {
 		try {
 			SocketChannel channel = listener.accept();
+			if(channel == null) {
+				// no pending connection (already accepted in this round)
+				return 0;
+			}
 			// Java SocketChannels required use non-blocking sockets with select
 			// also neither POSIX nor Windows required that
 			channel.configureBlocking(false);
@@ -43,7 +61,7 @@ public final class Acceptor extends EventHandler {
 			return -1;
 		}
 	}
-
+	
 	@Override
 	public SelectableChannel getSelectableChannel() {
 		return this.listener;
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+
+// Measures the bytes allocated by the reactor thread per dispatched event and
+// exits with 1 when it goes over the budget, so an allocation that creeps into
+// the select loop is caught. A pipe is written one byte at a time and every
+// byte is read by a handler that allocates nothing, so what is measured is the
+// cost of the loop itself, which should allocate nothing: the default budget
+// only leaves room for the noise of the measurement.
+//
+// usage: AllocationBenchmark [events] [budget in bytes per event]
+public class AllocationBenchmark {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int events = 200000;
+		long budget = 4;
+		if(args.length > 0) {
+			events = Integer.parseInt(args[0]);
+		}
+		if(args.length > 1) {
+			budget = Long.parseLong(args[1]);
+		}
+		
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("Allocated bytes per thread are not available in this JVM.");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+		allocations.setThreadAllocatedMemoryEnabled(true);
+		
+		Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		final Reactor reactor = Reactor.getInstance();
+		reactor.open(1);
+		PipeReader reader = new PipeReader(pipe.source());
+		reader.register(reactor, EventTypes.incoming);
+		
+		Thread loop = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				reactor.runEventLoop();
+			}
+		}, "AllocationBenchmark-reactor");
+		loop.start();
+		
+		ByteBuffer one = ByteBuffer.allocate(1);
+		// warm up so that the loop is compiled and the lazy structures exist
+		send(pipe, one, reader, events);
+		long before = allocations.getThreadAllocatedBytes(loop.getId());
+		long start = reader.events;
+		send(pipe, one, reader, events);
+		long after = allocations.getThreadAllocatedBytes(loop.getId());
+		long dispatched = reader.events - start;
+		
+		reactor.close();
+		loop.join();
+		pipe.sink().close();
+		
+		double perEvent = (double)(after - before) / dispatched;
+		System.out.printf("%d events, %d bytes allocated, %.2f bytes per event (budget %d).\n",
+						  dispatched, after - before, perEvent, budget);
+		if(perEvent > budget) {
+			System.out.println("Allocation budget exceeded.");
+			System.exit(1);
+		}
+	}
+	
+	// Writes one byte at a time and waits for it to be dispatched, so every
+	// byte is one wakeup of the loop
+	private static void send(Pipe pipe, ByteBuffer one, PipeReader reader, int count) throws IOException {
+		for(int i = 0; i < count; ++i) {
+			long expected = reader.events + 1;
+			one.clear();
+			pipe.sink().write(one);
+			while(reader.events < expected) {
+				Thread.yield();
+			}
+		}
+	}
+	
+	private static final class PipeReader extends EventHandler {
+		private final Pipe.SourceChannel source;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+		volatile long events = 0;
+		
+		PipeReader(Pipe.SourceChannel source) {
+			this.source = source;
+		}
+		
+		@Override
+		public int handleEvent() {
+			try {
+				buffer.clear();
+				if(source.read(buffer) < 0) {
+					return -1;
+				}
+				events++;
+				return 0;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return -1;
+			}
+		}
+		
+		@Override
+		public SelectableChannel getSelectableChannel() {
+			return this.source;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				this.source.close();
+			}
+		}
+	}
+}
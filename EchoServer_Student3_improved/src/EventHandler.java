@@ -1,18 +1,29 @@
 import java.io.IOException;
 import java.nio.channels.SelectableChannel;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 // Base EventHandler class
 public abstract class EventHandler {
 	
 	private Reactor reactor;
-	private EventTypes eventTypes;
+	// set of EventTypes values the handler is registered for
+	private volatile int interestSet;
+	// EventTypes values of the event being handled
+	private int readyEvents;
+	// timer of the EventTypes.timer event being handled
+	private ReactorTimer expiredTimer;
 	private AtomicBoolean isClosed = new AtomicBoolean(false);
 	
 	public EventHandler() {
 	}
 	
 	public void register(Reactor reactor, EventTypes eventTypes) throws IOException {
+		register(reactor, eventTypes.value());
+	}
+	
+	// interestSet combines EventTypes values, e.g. EventTypes.setOf(incoming, outgoing)
+	public void register(Reactor reactor, int interestSet) throws IOException {
 		if(reactor == null) {
 			throw new NullPointerException();
 		}
@@ -20,10 +31,10 @@ public abstract class EventHandler {
 			throw new IllegalStateException();
 		}
 		this.reactor = reactor;
-		this.eventTypes = eventTypes;
-		this.reactor.addHandler(this, eventTypes);
+		this.interestSet = interestSet;
+		this.reactor.addHandler(this, interestSet);
 	}
-
+	
 	public void close() throws IOException {
 		if(!isClosed.compareAndSet(false, true)) {
 			return;
@@ -31,7 +42,7 @@ public abstract class EventHandler {
 		Reactor reactor = this.reactor;
 		if(reactor != null) {
 			this.reactor = null;
-			reactor.removeHandler(this, this.eventTypes);
+			reactor.removeHandler(this);
 		}
 	}
 	
@@ -44,7 +55,63 @@ public abstract class EventHandler {
 		return this.reactor;
 	}
 	
-	protected EventTypes getEventTypes() {
-		return this.eventTypes;
+	protected int getInterestSet() {
+		return this.interestSet;
+	}
+	
+	// Changes the events of the registered channel in place (no re-registration)
+	protected void setInterestSet(int interestSet) throws IOException {
+		if(this.interestSet == interestSet) {
+			return;
+		}
+		this.interestSet = interestSet;
+		Reactor reactor = this.reactor;
+		if(reactor != null) {
+			reactor.updateInterestSet(this);
+		}
+	}
+	
+	// Switches OP_WRITE on while output is pending and off once it is written
+	protected void setWriteInterest(boolean enabled) throws IOException {
+		if(enabled) {
+			setInterestSet(this.interestSet | EventTypes.outgoing.value());
+		} else {
+			setInterestSet(this.interestSet & ~EventTypes.outgoing.value());
+		}
+	}
+	
+	// Timers firing EventTypes.timer events on this handler, see Reactor.schedule
+	protected ReactorTimer schedule(long delay, TimeUnit unit) {
+		Reactor reactor = this.reactor;
+		if(reactor == null) {
+			throw new IllegalStateException();
+		}
+		return reactor.schedule(this, delay, unit);
+	}
+	
+	protected ReactorTimer schedulePeriodic(long initialDelay, long period, TimeUnit unit) {
+		Reactor reactor = this.reactor;
+		if(reactor == null) {
+			throw new IllegalStateException();
+		}
+		return reactor.schedulePeriodic(this, initialDelay, period, unit);
+	}
+	
+	// Events the current handleEvent() call is for
+	protected int getReadyEvents() {
+		return this.readyEvents;
+	}
+	
+	void setReadyEvents(int readyEvents) {
+		this.readyEvents = readyEvents;
+	}
+	
+	// Timer that expired, while handling an EventTypes.timer event
+	protected ReactorTimer getExpiredTimer() {
+		return this.expiredTimer;
+	}
+	
+	void setExpiredTimer(ReactorTimer expiredTimer) {
+		this.expiredTimer = expiredTimer;
 	}
 }
@@ -13,5 +13,19 @@ public enum EventTypes {
 	
 	public int value() {
 		return this.value;
-	}		
+	}
+	
+	// Whether this type is in a set of event types
+	public boolean in(int eventTypes) {
+		return (eventTypes & this.value) != 0;
+	}
+	
+	// Set (bit mask) of event types to register a handler with
+	public static int setOf(EventTypes... eventTypes) {
+		int result = 0;
+		for(EventTypes eventType : eventTypes) {
+			result |= eventType.value;
+		}
+		return result;
+	}
 }
@@ -1,44 +1,63 @@
 import java.nio.channels.SelectionKey;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 
 
-// Mapper from Handler event types to SelectionKey operations
+// Mapper from Handler event types to SelectionKey operations, both ways,
+// through tables computed once for every combination of event types
 public final class EventTypesToSelectionOpsMapper {
-	private final Map<EventTypes, Integer> mapper;
-	private final static Object syncRoot = new Object(); 
-	private static volatile EventTypesToSelectionOpsMapper instance;
+	// all the event types together
+	public final static int ALL_EVENT_TYPES = EventTypes.setOf(EventTypes.values());
 	
-	private EventTypesToSelectionOpsMapper() {
-		mapper = new HashMap<EventTypes, Integer>();
-		mapper.put(EventTypes.accept, SelectionKey.OP_ACCEPT);
-		mapper.put(EventTypes.incoming, SelectionKey.OP_READ);
-		mapper.put(EventTypes.outgoing, SelectionKey.OP_WRITE);
-	}
+	private final static int[] ops = new int[ALL_EVENT_TYPES + 1];
+	private final static int[] eventTypes = new int[(SelectionKey.OP_READ | SelectionKey.OP_WRITE
+													| SelectionKey.OP_CONNECT | SelectionKey.OP_ACCEPT) + 1];
 	
-	private int mapImpl(EventTypes eventTypes) {
-		int result = 0;
-		for(Entry<EventTypes, Integer> entry : this.mapper.entrySet()) {
-			if((entry.getKey().value() & eventTypes.value()) == eventTypes.value()) {
-				result |= entry.getValue();
+	static {
+		for(int set = 0; set < ops.length; ++set) {
+			int result = 0;
+			if(EventTypes.accept.in(set)) {
+				result |= SelectionKey.OP_ACCEPT;
+			}
+			if(EventTypes.incoming.in(set)) {
+				result |= SelectionKey.OP_READ;
+			}
+			if(EventTypes.outgoing.in(set)) {
+				result |= SelectionKey.OP_WRITE;
 			}
+			// timers are not selector operations
+			ops[set] = result;
 		}
-		return result;
-	}
-	
-	private static EventTypesToSelectionOpsMapper getInstance() {
-		if(instance == null) {
-			synchronized(syncRoot) {
-				if(instance == null) {
-					instance = new EventTypesToSelectionOpsMapper();
-				}
+		for(int readyOps = 0; readyOps < eventTypes.length; ++readyOps) {
+			int result = 0;
+			if((readyOps & SelectionKey.OP_ACCEPT) != 0) {
+				result |= EventTypes.accept.value();
+			}
+			if((readyOps & SelectionKey.OP_READ) != 0) {
+				result |= EventTypes.incoming.value();
+			}
+			if((readyOps & (SelectionKey.OP_WRITE | SelectionKey.OP_CONNECT)) != 0) {
+				result |= EventTypes.outgoing.value();
 			}
+			eventTypes[readyOps] = result;
 		}
-		return instance;
+	}
+	
+	private EventTypesToSelectionOpsMapper() {
 	}
 	
 	public static int map(EventTypes eventTypes) {
-		return getInstance().mapImpl(eventTypes);
+		return map(eventTypes.value());
+	}
+	
+	// Selection operations of a set of event types
+	public static int map(int eventTypes) {
+		if(eventTypes < 0 || eventTypes > ALL_EVENT_TYPES) {
+			throw new IllegalArgumentException();
+		}
+		return ops[eventTypes];
+	}
+	
+	// Set of event types of the ready operations of a SelectionKey
+	public static int toEventTypes(int readyOps) {
+		return eventTypes[readyOps];
 	}
 }
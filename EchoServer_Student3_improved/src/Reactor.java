@@ -1,27 +1,52 @@
 import java.io.IOException;
-import java.nio.channels.SelectableChannel;
+import java.io.UncheckedIOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public final class Reactor {
-	private int limit;
-	private int count;
 	private Selector selector;
-	private EventHandler[] handlers;
-	private EventTypes[] filterHandlers;
+	private Set<EventHandler> handlers;
+	// handlers added or changed by other threads, (re)registered by the event loop thread
+	private List<EventHandler> pending;
+	private Thread loopThread;
+	// timers of the handlers, the nearest deadline first
+	private PriorityQueue<ReactorTimer> timers;
 	private final Object syncRoot = new Object();
-	private Map<SelectionKey, Integer> handlerMapper;
+	// runs the handler attached to each ready key
+	private final Consumer<SelectionKey> dispatcher = new Consumer<SelectionKey>() {
+		
+		@Override
+		public void accept(SelectionKey key) {
+			if(!key.isValid()) {
+				// handler removed meanwhile
+				return;
+			}
+			EventHandler handler = (EventHandler)key.attachment();
+			handler.setReadyEvents(EventTypesToSelectionOpsMapper.toEventTypes(key.readyOps()));
+			if(handler.handleEvent() < 0) {
+				try {
+					handler.close();
+				} catch(IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+			}
+		}
+	};
 	
 	public final int EXIT_EVENT = Integer.MIN_VALUE;
 	
 	private volatile static Reactor instance;
 	private final static Object instanceLock = new Object();
 	
-	private Reactor() {
+	// Independent reactor, e.g. one per thread; getInstance() is the process-wide one
+	public Reactor() {
 		
 	}
 	
@@ -36,22 +61,23 @@ public final class Reactor {
 		return instance;
 	}
 	
+	// limit is only a hint of the number of handlers, the set grows as needed
 	public void open(int limit) throws IOException {
 		if(limit <= 0) {
 			throw new IllegalArgumentException();
 		}
 		synchronized(this.syncRoot) {
 			if(this.handlers != null) {
-				throw new IllegalStateException(); 
+				throw new IllegalStateException();
 			}
-			this.count = 0;
-			this.limit = limit;
-			this.handlers = new EventHandler[limit];
-			this.filterHandlers = new EventTypes[limit];
+			this.selector = Selector.open();
+			this.handlers = new HashSet<EventHandler>(limit);
+			this.pending = new ArrayList<EventHandler>();
+			this.timers = new PriorityQueue<ReactorTimer>();
 		}
 	}
 	
-	public void addHandler(EventHandler handler, EventTypes eventTypes) throws IOException {
+	public void addHandler(EventHandler handler, int interestSet) throws IOException {
 		if(handler == null) {
 			throw new NullPointerException();
 		}
@@ -59,23 +85,21 @@ public final class Reactor {
 			if(this.handlers == null) {
 				throw new IllegalStateException();
 			}
-			if(this.count >= this.limit) {
+			if(!this.handlers.add(handler)) {
 				throw new IllegalStateException();
 			}
-			
-			this.handlers[this.count] = handler;
-			this.filterHandlers[this.count++] = eventTypes;
-			
-			this.handlerMapper = null;
-			Selector select = this.selector;
-			if(selector != null) {
-				this.selector = null;
-				select.close();
+			if(Thread.currentThread() == this.loopThread) {
+				registerImpl(handler, interestSet);
+			} else {
+				// register() may block while the loop thread is in select,
+				// so leave it to the loop thread and wake it up
+				this.pending.add(handler);
+				this.selector.wakeup();
 			}
 		}
 	}
 	
-	public boolean removeHandler(EventHandler handler, EventTypes eventTypes) throws IOException {
+	public boolean removeHandler(EventHandler handler) throws IOException {
 		if(handler == null) {
 			throw new NullPointerException();
 		}
@@ -83,19 +107,60 @@ public final class Reactor {
 			if(this.handlers == null) {
 				throw new IllegalStateException();
 			}
-			return removeHandlerImpl(handler, eventTypes);
+			return removeHandlerImpl(handler);
+		}
+	}
+	
+	// Applies a new interest set of a registered handler to its key
+	public void updateInterestSet(EventHandler handler) throws IOException {
+		if(handler == null) {
+			throw new NullPointerException();
+		}
+		synchronized(this.syncRoot) {
+			if(this.handlers == null || !this.handlers.contains(handler)) {
+				return;
+			}
+			if(Thread.currentThread() == this.loopThread) {
+				registerImpl(handler, handler.getInterestSet());
+			} else if(!this.pending.contains(handler)) {
+				// interestOps() may block while the loop thread is in select too
+				this.pending.add(handler);
+				this.selector.wakeup();
+			}
 		}
 	}
 	
+	// The handler gets an EventTypes.timer event once, after the delay
+	public ReactorTimer schedule(EventHandler handler, long delay, TimeUnit unit) {
+		return scheduleImpl(handler, unit.toNanos(delay), 0);
+	}
+	
+	// The handler gets an EventTypes.timer event after the initial delay and then every period
+	public ReactorTimer schedulePeriodic(EventHandler handler, long initialDelay, long period, TimeUnit unit) {
+		if(period <= 0) {
+			throw new IllegalArgumentException();
+		}
+		return scheduleImpl(handler, unit.toNanos(initialDelay), unit.toNanos(period));
+	}
+	
 	public void close() throws IOException {
 		synchronized (this.syncRoot) {
-			for(int i = this.count; i-- > 0;) {
-				removeHandlerImpl(this.handlers[i], this.filterHandlers[i]);
+			if(this.handlers == null) {
+				return;
+			}
+			EventHandler[] all = this.handlers.toArray(new EventHandler[this.handlers.size()]);
+			for(int i = all.length; i-- > 0;) {
+				removeHandlerImpl(all[i]);
 			}
 			this.handlers = null;
-			this.selector = null;
-			this.handlerMapper = null;
-			this.filterHandlers = null;
+			this.pending = null;
+			this.timers = null;
+			if(this.loopThread == null) {
+				closeSelector();
+			} else {
+				// the loop thread may be using the selector, it closes it
+				this.selector.wakeup();
+			}
 		}
 	}
 	
@@ -103,36 +168,43 @@ public final class Reactor {
 		return waitEvent(0);
 	}
 	
+	// timeout in milliseconds, 0 to wait until an event; the nearest timer shortens it
 	public int waitEvent(long timeout) throws IOException {
 		Selector select;
+		boolean expired = false;
 		synchronized (this.syncRoot) {
-			if(this.handlers == null || this.count == 0) {
-				return EXIT_EVENT;
+			if(this.handlers == null || this.handlers.isEmpty()) {
+				return exitEventLoop();
 			}
-			select = getSelector();
-		}
-		int result = select.select(timeout);
-		synchronized (this.syncRoot) {
-			if(this.handlerMapper != null) {
-				// need to store selected keys in a separate collection
-				// because handling readable selections is a bit tricky in Java NIO
-				List<SelectionKey> selected = new ArrayList<SelectionKey>();
-				selected.addAll(select.selectedKeys());
-				for(int i = 0; i < selected.size(); ++i) {
-					SelectionKey key = selected.get(i);
-			        int idx = this.handlerMapper.get(key);
-			        if(key.isReadable()) {
-			        	// special handling for readable selections
-				        handleReadableSelection(select, selected, key, idx);
-			        } else if(this.handlers[idx].handleEvent() < 0) {
-						this.handlers[idx].close();
-			        }
+			this.loopThread = Thread.currentThread();
+			select = this.selector;
+			for(int i = 0; i < this.pending.size(); ++i) {
+				EventHandler handler = this.pending.get(i);
+				registerImpl(handler, handler.getInterestSet());
+			}
+			this.pending.clear();
+			ReactorTimer next = this.timers.peek();
+			if(next != null) {
+				long delay = next.getDeadline() - System.nanoTime();
+				if(delay <= 0) {
+					expired = true;
+				} else {
+					long millis = TimeUnit.NANOSECONDS.toMillis(delay + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+					if(timeout == 0 || millis < timeout) {
+						timeout = millis;
+					}
 				}
-				
-				return result;
 			}
 		}
-		return -1;
+		// handlers are only run by this thread, so the dispatch needs no lock;
+		// the ready keys go straight to the dispatcher, nothing is allocated per event
+		int result;
+		try {
+			result = expired ? select.selectNow(this.dispatcher) : select.select(this.dispatcher, timeout);
+		} catch(UncheckedIOException uioe) {
+			throw uioe.getCause();
+		}
+		return result + runTimers();
 	}
 	
 	public void runEventLoop() {
@@ -144,70 +216,106 @@ public final class Reactor {
 		}
 	}
 	
-	// Gets a selector with registered handlers for select  
-	private Selector getSelector() throws IOException {
-		Selector select;
-		select = this.selector;
-		if(selector == null) {
-			select = this.selector = Selector.open();
-			this.handlerMapper = new HashMap<SelectionKey, Integer>();
-			for(int i = 0; i < this.count; ++i) {
-				SelectionKey key = this.handlers[i].getSelectableChannel().register(
-											select,
-											EventTypesToSelectionOpsMapper.map(this.filterHandlers[i]));
-				this.handlerMapper.put(key, i);
+	private ReactorTimer scheduleImpl(EventHandler handler, long delay, long period) {
+		if(handler == null) {
+			throw new NullPointerException();
+		}
+		if(delay < 0) {
+			throw new IllegalArgumentException();
+		}
+		ReactorTimer timer = new ReactorTimer(handler, System.nanoTime() + delay, period);
+		synchronized(this.syncRoot) {
+			if(this.handlers == null) {
+				throw new IllegalStateException();
+			}
+			this.timers.add(timer);
+			if(Thread.currentThread() != this.loopThread && this.timers.peek() == timer) {
+				// the loop thread may be waiting beyond the new deadline
+				this.selector.wakeup();
 			}
 		}
-		return select;
+		return timer;
 	}
-
-	// Read operation required blocking work with a socket, so readable event should be
-	// handled in a special way
-	private void handleReadableSelection(Selector select, List<SelectionKey> selected,
-										 SelectionKey key, int idx) throws IOException {
-		SelectableChannel channel = key.channel();
-		this.handlerMapper.remove(key);
-		key.cancel();
-		int opResult = 0;
-		channel.configureBlocking(true);
-		try {
-			if((opResult = this.handlers[idx].handleEvent()) < 0) {
-				this.handlers[idx].close();
-			}
-		} finally {
-			if(opResult >= 0) {
-				channel.configureBlocking(false);
-				// Java NIO hack: it isn't possible to register channel
-				// which SelectionKey was canceled until a new select operation is executed
-				if(select.selectNow() != 0) {
-					// added a new events to handle if there are exist
-					selected.addAll(select.selectedKeys());
+	
+	// Fires the timers expired so far, in the event loop thread, and returns their number
+	private int runTimers() throws IOException {
+		long now = System.nanoTime();
+		int fired = 0;
+		while(true) {
+			ReactorTimer timer;
+			synchronized(this.syncRoot) {
+				if(this.timers == null) {
+					return fired;
+				}
+				timer = this.timers.peek();
+				if(timer == null || timer.getDeadline() - now > 0) {
+					return fired;
+				}
+				this.timers.poll();
+				if(timer.isCancelled() || !this.handlers.contains(timer.getHandler())) {
+					// cancelled, or its handler has been removed
+					continue;
+				}
+				if(timer.isPeriodic()) {
+					timer.advance(now);
+					this.timers.add(timer);
 				}
-				SelectionKey newKey = channel.register(
-											select,
-											EventTypesToSelectionOpsMapper.map(this.filterHandlers[idx]));
-				this.handlerMapper.put(newKey, idx);
 			}
+			EventHandler handler = timer.getHandler();
+			handler.setReadyEvents(EventTypes.timer.value());
+			handler.setExpiredTimer(timer);
+			try {
+				if(handler.handleEvent() < 0) {
+					handler.close();
+				}
+			} finally {
+				handler.setExpiredTimer(null);
+			}
+			fired++;
 		}
 	}
 	
-	private boolean removeHandlerImpl(EventHandler handler, EventTypes eventTypes) throws IOException {
-		for(int i = this.handlers.length; i-- > 0;) {
-			if(this.handlers[i] == handler && this.filterHandlers[i] == eventTypes) {
-				this.handlers[i] = this.handlers[--this.count];
-				this.filterHandlers[i] = this.filterHandlers[this.count];
-				this.handlers[this.count] = null;
-				this.handlerMapper = null;
-				Selector selector = this.selector;
-				if(selector != null) {
-					this.selector = null;
-					selector.close();
-				}
-				handler.close();
-				
-				return true;
-			}
+	// Called with syncRoot held when the loop thread leaves the event loop
+	private int exitEventLoop() throws IOException {
+		this.loopThread = null;
+		if(this.handlers == null) {
+			closeSelector();
+		}
+		return EXIT_EVENT;
+	}
+	
+	private void closeSelector() throws IOException {
+		Selector selector = this.selector;
+		if(selector != null) {
+			this.selector = null;
+			selector.close();
 		}
-		return false;
+	}
+	
+	// Registers the handler's channel with the handler as the key attachment,
+	// or only changes the operations of its key when it is already registered
+	private void registerImpl(EventHandler handler, int interestSet) throws IOException {
+		int ops = EventTypesToSelectionOpsMapper.map(interestSet);
+		SelectionKey key = handler.getSelectableChannel().keyFor(this.selector);
+		if(key != null && key.isValid()) {
+			key.interestOps(ops);
+		} else {
+			handler.getSelectableChannel().register(this.selector, ops, handler);
+		}
+	}
+	
+	private boolean removeHandlerImpl(EventHandler handler) throws IOException {
+		if(!this.handlers.remove(handler)) {
+			return false;
+		}
+		this.pending.remove(handler);
+		// only this handler's key is cancelled, the others stay registered
+		SelectionKey key = handler.getSelectableChannel().keyFor(this.selector);
+		if(key != null) {
+			key.cancel();
+		}
+		handler.close();
+		
+		return true;
 	}
 }
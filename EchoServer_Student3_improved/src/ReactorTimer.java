@@ -0,0 +1,50 @@
+// One-shot or periodic timer of an EventHandler, fired by the Reactor's event loop.
+// Cancelled timers are dropped by the reactor when their deadline comes.
+public final class ReactorTimer implements Comparable<ReactorTimer> {
+	private final EventHandler handler;
+	// in nanoseconds, 0 for a one-shot timer
+	private final long period;
+	// System.nanoTime() of the next expiration
+	private long deadline;
+	private volatile boolean cancelled = false;
+	
+	ReactorTimer(EventHandler handler, long deadline, long period) {
+		this.handler = handler;
+		this.deadline = deadline;
+		this.period = period;
+	}
+	
+	public EventHandler getHandler() {
+		return this.handler;
+	}
+	
+	public boolean isPeriodic() {
+		return this.period > 0;
+	}
+	
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+	
+	public void cancel() {
+		this.cancelled = true;
+	}
+	
+	long getDeadline() {
+		return this.deadline;
+	}
+	
+	// Moves a periodic timer to its next period, skipping the periods
+	// missed by a late event loop
+	void advance(long now) {
+		this.deadline += this.period;
+		if(this.deadline <= now) {
+			this.deadline = now + this.period;
+		}
+	}
+	
+	@Override
+	public int compareTo(ReactorTimer other) {
+		return Long.compare(this.deadline, other.deadline);
+	}
+}
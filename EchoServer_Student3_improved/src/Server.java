@@ -2,6 +2,9 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 
+// usage: Server [port] [shards]
+// With more than one shard every shard is an independent Reactor on its own thread,
+// with its own Acceptor bound to the same port with SO_REUSEPORT
 public class Server {
 	public static void main(String[] args) throws IOException, InterruptedException {
 		
@@ -13,34 +16,57 @@ public class Server {
 				// ignore, use default port
 			}
 		}
+		int shards = 1;
+		if(args.length > 1) {
+			try {
+				shards = Math.max(1, Integer.parseInt(args[1]));
+			} catch(NumberFormatException nfe) {
+				// ignore, use a single reactor
+			}
+		}
 		final int serverPort = port;
+		final boolean reusePort = shards > 1;
 		
-		Thread serverThread = new Thread(new Runnable() {
-
-			@Override
-			public void run() {
-				// TODO Auto-generated method stub
-				try {
-					SocketAddress endpoint = new InetSocketAddress(serverPort); 
-					System.out.printf("Server has been started on port %d.\n", serverPort);
-					Acceptor acceptor = new Acceptor(endpoint);
-					Reactor.getInstance().open(11);
-					acceptor.register(Reactor.getInstance(), EventTypes.accept);
-					
-					Reactor.getInstance().runEventLoop();
-					
-					System.out.println("Server has been stoped.");
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+		Reactor[] reactors = new Reactor[shards];
+		Thread[] serverThreads = new Thread[shards];
+		for(int i = 0; i < shards; ++i) {
+			final Reactor reactor = reusePort ? new Reactor() : Reactor.getInstance();
+			final int shard = i;
+			reactors[i] = reactor;
+			serverThreads[i] = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						SocketAddress endpoint = new InetSocketAddress(serverPort);
+						Acceptor acceptor = new Acceptor(endpoint, reusePort);
+						reactor.open(11);
+						acceptor.register(reactor, EventTypes.accept);
+						if(reusePort) {
+							System.out.printf("Server shard %d has been started on port %d.\n", shard, serverPort);
+						} else {
+							System.out.printf("Server has been started on port %d.\n", serverPort);
+						}
+						
+						reactor.runEventLoop();
+						
+						System.out.println("Server has been stoped.");
+					} catch (IOException e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
+					}
 				}
-			}
-		});
-		serverThread.start();
+			}, "Reactor-" + i);
+			serverThreads[i].start();
+		}
 		
 		System.in.read();
-		Reactor.getInstance().close();
+		for(int i = 0; i < shards; ++i) {
+			reactors[i].close();
+		}
 		
-		serverThread.join();
+		for(int i = 0; i < shards; ++i) {
+			serverThreads[i].join();
+		}
 	}
 }
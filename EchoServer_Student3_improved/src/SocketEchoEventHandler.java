@@ -1,33 +1,76 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
 
 // echo socket event handler
 public final class SocketEchoEventHandler extends EventHandler {
-
-	private final BufferedReader reader;
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+	// the client is not read while this much echo is waiting to be written
+	private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+	
 	private final SocketChannel channel;
+	// bytes received and not decoded yet, in write mode;
+	// [0, scanned) is known to hold no line terminator
+	private ByteBuffer input = ByteBuffer.allocate(INITIAL_CAPACITY);
+	private int scanned = 0;
+	// the last line ended with '\r', so a following '\n' belongs to it
+	private boolean skipLF = false;
+	// echo of the decoded lines not written yet, in write mode
+	private ByteBuffer output = ByteBuffer.allocate(INITIAL_CAPACITY);
+	// end of stream read: the connection closes once the echo is written
+	private boolean inputClosed = false;
 	
 	public SocketEchoEventHandler(SocketChannel channel) throws IOException {
 		if(channel == null) {
 			throw new NullPointerException();
 		}
 		this.channel = channel;
-		this.reader = new BufferedReader(new InputStreamReader(this.channel.socket().getInputStream()));
 	}
 	
 	@Override
 	public int handleEvent() {
 		try {
-			String line = this.reader.readLine();
-			if(!this.channel.isConnected() || line == null) {
-				// connection has been close
-				// so send code to remove handler from reactor
-				return -1;
+			if(EventTypes.outgoing.in(getReadyEvents())) {
+				// the rest of the echo queued by an earlier event
+				if(flushOutput() && this.inputClosed) {
+					return -1;
+				}
+			}
+			if(!EventTypes.incoming.in(getReadyEvents()) || this.inputClosed) {
+				return 0;
+			}
+			// read what is available, the channel stays non-blocking
+			int read = 0;
+			while(this.output.position() < MAX_PENDING_OUTPUT
+					&& (read = this.channel.read(this.input)) > 0) {
+				decodeLines();
+				if(!this.input.hasRemaining() && !growInput()) {
+					System.out.printf("Event > Client %s sent a line longer than %d bytes.\n", this.channel.socket().getInetAddress().toString(), MAX_LINE_LENGTH);
+					return -1;
+				}
+			}
+			if(read < 0) {
+				// connection has been close, the unterminated tail is the last line
+				if(this.input.position() > 0) {
+					onLine(this.input.array(), 0, this.input.position());
+				}
+				// the client may only have shut down its output, so it still gets the echo
+				this.inputClosed = true;
+				if(flushOutput()) {
+					// so send code to remove handler from reactor
+					return -1;
+				}
+			}
+			if(!EventTypes.outgoing.in(getInterestSet())) {
+				// all the lines of this event in a single write
+				flushOutput();
+			} else {
+				// the outgoing event writes, but reading must stop if too much is waiting
+				updateInterestSet();
 			}
-			System.out.printf("Client %s: %s\n", this.channel.socket().getInetAddress().toString(), line);
 			return 0;
 		} catch (IOException e) {
 			// Error occurred
@@ -36,7 +79,7 @@ public final class SocketEchoEventHandler extends EventHandler {
 			return -1;
 		}
 	}
-
+	
 	@Override
 	public SelectableChannel getSelectableChannel() {
 		return this.channel;
@@ -51,4 +94,86 @@ public final class SocketEchoEventHandler extends EventHandler {
 			this.channel.close();
 		}
 	}
+	
+	// Emits every complete line (ended by "\n", "\r" or "\r\n" like BufferedReader.readLine)
+	// and keeps the partial tail at the start of the buffer
+	private void decodeLines() {
+		byte[] data = this.input.array();
+		int end = this.input.position();
+		int start = 0;
+		for(int i = this.scanned; i < end; ++i) {
+			byte b = data[i];
+			if(this.skipLF) {
+				this.skipLF = false;
+				if(b == '\n') {
+					onLine(data, i, 1);
+					start = i + 1;
+					continue;
+				}
+			}
+			if(b == '\n' || b == '\r') {
+				// the line is echoed with its terminator
+				onLine(data, start, i + 1 - start);
+				start = i + 1;
+				this.skipLF = b == '\r';
+			}
+		}
+		if(start > 0) {
+			this.input.flip();
+			this.input.position(start);
+			this.input.compact();
+		}
+		this.scanned = this.input.position();
+	}
+	
+	// The buffer is full of a single partial line
+	private boolean growInput() {
+		int capacity = this.input.capacity();
+		if(capacity >= MAX_LINE_LENGTH) {
+			return false;
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(Math.min(capacity * 2, MAX_LINE_LENGTH));
+		this.input.flip();
+		bigger.put(this.input);
+		this.input = bigger;
+		return true;
+	}
+	
+	private void onLine(byte[] data, int offset, int length) {
+		if(this.output.remaining() < length) {
+			int capacity = this.output.capacity();
+			while(capacity - this.output.position() < length) {
+				capacity *= 2;
+			}
+			ByteBuffer bigger = ByteBuffer.allocate(capacity);
+			this.output.flip();
+			bigger.put(this.output);
+			this.output = bigger;
+		}
+		this.output.put(data, offset, length);
+	}
+	
+	// One write of the pending echo; what the socket does not take waits for OP_WRITE,
+	// and reading stops while too much is waiting. Returns whether all has been written.
+	private boolean flushOutput() throws IOException {
+		if(this.output.position() > 0) {
+			this.output.flip();
+			this.channel.write(this.output);
+			this.output.compact();
+		}
+		updateInterestSet();
+		return this.output.position() == 0;
+	}
+	
+	// Incoming only while the echo waiting is small, outgoing while there is some
+	private void updateInterestSet() throws IOException {
+		int interestSet = 0;
+		if(!this.inputClosed && this.output.position() < MAX_PENDING_OUTPUT) {
+			interestSet |= EventTypes.incoming.value();
+		}
+		if(this.output.position() > 0) {
+			interestSet |= EventTypes.outgoing.value();
+		}
+		setInterestSet(interestSet);
+	}
 }